@@ -11,6 +11,12 @@ import java.io.*;
 import java.util.*;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -33,20 +39,253 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Default number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_READ_AHEAD = 8;
+    //most read-ahead requests that may be queued before new ones are dropped
+    private static final int MAX_QUEUED_READ_AHEAD = 256;
+    //background page reads for all pools, created on first use; idle
+    //threads exit
+    private static ThreadPoolExecutor readAheadExecutor;
+
+    /** A scan over more than 1/SCAN_RING_FRACTION of the pool gets a scan ring. */
+    public static final int SCAN_RING_FRACTION = 4;
+    /** Most frames one scan ring recycles. */
+    public static final int MAX_SCAN_RING_PAGES = 32;
     ConcurrentHashMap<PageId, Page> bp;
     int maxPages;
     LockManager lockManager;
+    Partition[] partitions;
+    //pages each running transaction may have dirtied: everything it fetched
+    //READ_WRITE plus the pages returned by insertTuple/deleteTuple
+    ConcurrentHashMap<TransactionId, Set<PageId>> dirtiedPages;
+    //first page of each table a running transaction bulk loaded
+    ConcurrentHashMap<TransactionId, Map<Integer, Integer>> bulkLoads;
+    //LsmFile tables a running transaction wrote
+    ConcurrentHashMap<TransactionId, Set<Integer>> lsmWrites;
+    //resident pages visited by transactionComplete, for monitoring
+    AtomicLong completionPagesVisited;
+    volatile int lastCompletionPagesVisited;
+    //tables whose writers lock single rows instead of whole pages
+    Set<Integer> rowLockedTables;
+    volatile int readAheadDepth;
+    //pages loaded by read-ahead, for monitoring
+    AtomicLong readAheadPages;
+    //page requests served from the pool and read from disk, for monitoring
+    AtomicLong hits;
+    AtomicLong misses;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * The frames a large scan cycles its pages through. A page the scan reads
+     * in joins the ring, and once the ring is full the oldest page in it is
+     * dropped from the pool (if it is still clean) to make room, so the scan
+     * reuses its own frames instead of evicting the pool's hot pages. Pages
+     * that were already resident are used in place and don't join the ring.
+     *
+     * @see BufferPool#scanRing
+     */
+    public static class ScanRing {
+        private final int capacity;
+        private final ArrayDeque<PageId> pages;
+
+        ScanRing(int capacity) {
+            this.capacity = capacity;
+            this.pages = new ArrayDeque<PageId>();
+        }
+
+        /** Return the number of frames in this ring. */
+        public int capacity() {
+            return capacity;
+        }
+
+        //add pid, returning the page that falls out of the ring or null
+        synchronized PageId admit(PageId pid) {
+            if (pages.contains(pid)) {
+                return null;
+            }
+            pages.addLast(pid);
+            return pages.size() > capacity ? pages.removeFirst() : null;
+        }
+    }
+
+    /**
+     * A slice of the pool. Every page hashes to exactly one partition, which
+     * has its own latch (the partition object's monitor), capacity and
+     * replacement state, so misses in different partitions never wait on each
+     * other. The pages themselves all live in bp.
+     */
+    private static class Partition {
+        final int capacity;
+        final EvictionPolicy evictionPolicy;
+        //number of pages of this partition currently in bp
+        final AtomicInteger resident;
+
+        Partition(int capacity, EvictionPolicy evictionPolicy) {
+            this.capacity = capacity;
+            this.evictionPolicy = evictionPolicy;
+            this.resident = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockEvictionPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * pages according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy decides which page is evicted when the pool is full
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
+        this(numPages, 1, evictionPolicy);
+    }
+
+    /**
+     * Creates a partitioned BufferPool. Pages are hashed by PageId into
+     * numPartitions independent partitions that split the numPages frames
+     * between them; each partition runs its own copy of evictionPolicy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions, at least 1 and at most numPages
+     * @param evictionPolicy decides which page is evicted when a partition is
+     *   full; every partition after the first gets an emptyCopy() of it
+     */
+    public BufferPool(int numPages, int numPartitions, EvictionPolicy evictionPolicy) {
+        if (numPartitions < 1 || numPartitions > Math.max(numPages, 1)) {
+            throw new IllegalArgumentException("Invalid number of partitions: " + numPartitions);
+        }
         this.bp = new ConcurrentHashMap<PageId, Page>();
         this.maxPages = numPages;
         this.lockManager = new LockManager();
+        this.dirtiedPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        this.bulkLoads = new ConcurrentHashMap<TransactionId, Map<Integer, Integer>>();
+        this.lsmWrites = new ConcurrentHashMap<TransactionId, Set<Integer>>();
+        this.completionPagesVisited = new AtomicLong(0);
+        this.lastCompletionPagesVisited = 0;
+        this.rowLockedTables = ConcurrentHashMap.newKeySet();
+        this.readAheadDepth = DEFAULT_READ_AHEAD;
+        this.readAheadPages = new AtomicLong(0);
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            //spread the remainder over the first partitions
+            int capacity = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            EvictionPolicy policy = i == 0 ? evictionPolicy : evictionPolicy.emptyCopy();
+            partitions[i] = new Partition(capacity, policy);
+        }
     }
-    
+
+    /** Returns the partition responsible for the given page. */
+    private Partition partitionOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return partitions[(h & 0x7fffffff) % partitions.length];
+    }
+
+    /** Makes p resident (or replaces the resident copy) and records the access. */
+    private void putFrame(Page p) {
+        PageId pid = p.getId();
+        Partition part = partitionOf(pid);
+        if (bp.put(pid, p) == null) {
+            part.resident.incrementAndGet();
+        }
+        part.evictionPolicy.recordAccess(pid);
+    }
+
+    /**
+     * Makes a page changed by insertTuple/deleteTuple resident, evicting
+     * first if it had been evicted and its partition is full. Latched like a
+     * miss, so a read-ahead of the same page can't put the older disk copy
+     * back over it.
+     */
+    private void putChangedFrame(Page p) throws DbException {
+        Partition part = partitionOf(p.getId());
+        synchronized (part) {
+            if (!bp.containsKey(p.getId()) && part.resident.get() >= part.capacity) {
+                evictPage(part);
+            }
+            putFrame(p);
+        }
+    }
+
+    /** Remembers that tid may have dirtied pid, so completing tid visits it. */
+    private void noteDirtied(TransactionId tid, PageId pid) {
+        if (tid == null) {
+            return;
+        }
+        Set<PageId> pages = dirtiedPages.get(tid);
+        if (pages == null) {
+            Set<PageId> fresh = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            pages = dirtiedPages.putIfAbsent(tid, fresh);
+            if (pages == null) {
+                pages = fresh;
+            }
+        }
+        pages.add(pid);
+    }
+
+    /**
+     * Remembers that tid bulk loaded a file from firstPage (or another
+     * position the file logged) on, so the load is undone if tid aborts.
+     *
+     * @see BulkLoadable#bulkLoad
+     */
+    void noteBulkLoad(TransactionId tid, int tableId, int firstPage) {
+        Map<Integer, Integer> loads = bulkLoads.get(tid);
+        if (loads == null) {
+            Map<Integer, Integer> fresh = new ConcurrentHashMap<Integer, Integer>();
+            loads = bulkLoads.putIfAbsent(tid, fresh);
+            if (loads == null) {
+                loads = fresh;
+            }
+        }
+        //an earlier load into the same table starts further up front
+        loads.merge(tableId, firstPage, Math::min);
+    }
+
+    /**
+     * Remembers that tid wrote an LsmFile, so its writes are applied when
+     * tid commits and dropped if it aborts.
+     *
+     * @see LsmFile
+     */
+    void noteLsmWrite(TransactionId tid, int tableId) {
+        Set<Integer> tables = lsmWrites.get(tid);
+        if (tables == null) {
+            Set<Integer> fresh = ConcurrentHashMap.newKeySet();
+            tables = lsmWrites.putIfAbsent(tid, fresh);
+            if (tables == null) {
+                tables = fresh;
+            }
+        }
+        tables.add(tableId);
+    }
+
+    /**
+     * Returns how many resident pages the most recent call to
+     * transactionComplete had to visit.
+     */
+    public int getLastCompletionPagesVisited() {
+        return lastCompletionPagesVisited;
+    }
+
+    /**
+     * Returns how many resident pages all calls to transactionComplete have
+     * visited since this BufferPool was created.
+     */
+    public long getCompletionPagesVisited() {
+        return completionPagesVisited.get();
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -77,6 +316,17 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like getPage(tid, pid, perm), but for a
+     * scan that reads it in through the given scan ring.
+     *
+     * @param ring the scan's ring from scanRing, or null to use the pool normally
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
         throws TransactionAbortedException, DbException {
         try {
             if (perm.equals(Permissions.READ_ONLY)) {
@@ -86,21 +336,194 @@ public class BufferPool {
             }
         } catch (InterruptedException ie){
         }
+        if (perm.equals(Permissions.READ_WRITE)) {
+            //callers may markDirty pages they fetched for writing
+            noteDirtied(tid, pid);
+        }
+        return fetchPage(pid, ring);
+    }
 
+    /**
+     * Returns a scan ring for a scan over scanPages pages, or null if the
+     * scan is small enough compared to the pool to be read in normally.
+     */
+    public ScanRing scanRing(int scanPages) {
+        if (scanPages <= maxPages / SCAN_RING_FRACTION) {
+            return null;
+        }
+        return new ScanRing(Math.max(1, Math.min(MAX_SCAN_RING_PAGES, maxPages / SCAN_RING_FRACTION)));
+    }
 
-        PageId copyOfPid = pid;
-        if(bp.containsKey(copyOfPid)){
-            return bp.get(copyOfPid);
-        }else {
-            if(bp.size() >= maxPages){
-                evictPage();
+    //a page that fell out of a scan ring leaves the pool, unless someone
+    //dirtied it in the meantime
+    private void recycle(PageId pid) {
+        if (pid == null) {
+            return;
+        }
+        synchronized (partitionOf(pid)) {
+            Page p = bp.get(pid);
+            if (p != null && p.isDirty() == null) {
+                discardPage(pid);
+            }
+        }
+    }
+
+    /**
+     * Retrieves a page of a row-locked table. Only intention locks are taken
+     * on the page and its table (IS for READ_ONLY, IX for READ_WRITE), so
+     * several transactions can write the page at once; they lock the rows
+     * they change with lockRow, and the page's monitor latches its slots.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page's rows
+     */
+    public Page getRowPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        try {
+            lockManager.acquireIntentionLock(pid, tid, perm.equals(Permissions.READ_WRITE));
+        } catch (InterruptedException ie){
+        }
+        if (perm.equals(Permissions.READ_WRITE)) {
+            noteDirtied(tid, pid);
+        }
+        return fetchPage(pid, null);
+    }
+
+    /** Returns the page from the pool, reading it in (through ring, if any) on a miss. */
+    private Page fetchPage(PageId pid, ScanRing ring) throws DbException {
+        //hits only touch the concurrent map and the partition's policy
+        Partition part = partitionOf(pid);
+        Page pg = bp.get(pid);
+        if(pg != null){
+            part.evictionPolicy.recordAccess(pid);
+            hits.incrementAndGet();
+            return pg;
+        }
+        misses.incrementAndGet();
+        //free the ring's oldest frame first, outside our partition's latch
+        if (ring != null) {
+            recycle(ring.admit(pid));
+        }
+        //misses hold the partition latch so the page is loaded only once and
+        //the partition never grows past its capacity
+        synchronized (part) {
+            pg = bp.get(pid);
+            if(pg == null){
+                if(part.resident.get() >= part.capacity){
+                    evictPage(part);
+                }
+                pg = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
             }
-            Page pg = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            bp.put(pid, pg);
+            putFrame(pg);
             return pg;
         }
     }
 
+    /**
+     * Reads a page into the pool in the background, so that a scan finds it
+     * there later. No locks are taken: the reader still calls getPage, which
+     * locks the page and then hits. The page is skipped if it is already
+     * resident, if making room would mean evicting a dirty page, or if too
+     * many read-ahead requests are queued.
+     *
+     * @param pid the ID of the page to read ahead
+     */
+    public void prefetchPage(PageId pid) {
+        prefetchPage(pid, null);
+    }
+
+    /**
+     * Reads a page ahead like prefetchPage(pid), through a scan's ring.
+     *
+     * @param ring the scan's ring from scanRing, or null
+     */
+    public void prefetchPage(final PageId pid, final ScanRing ring) {
+        if (bp.containsKey(pid)) {
+            return;
+        }
+        readAheadExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    if (ring != null && !bp.containsKey(pid)) {
+                        recycle(ring.admit(pid));
+                    }
+                    loadAhead(pid);
+                } catch (Exception e) {
+                    //only a hint; the scan will read the page itself
+                }
+            }
+        });
+    }
+
+    /** Makes pid resident unless that needs a dirty page evicted. */
+    void loadAhead(PageId pid) throws DbException, IOException {
+        Partition part = partitionOf(pid);
+        synchronized (part) {
+            if (bp.containsKey(pid)) {
+                return;
+            }
+            if (part.resident.get() >= part.capacity) {
+                PageId victim = part.evictionPolicy.chooseVictim(bp);
+                Page vp = victim == null ? null : bp.get(victim);
+                //never write out a page just to make room for a guess
+                if (vp == null || vp.isDirty() != null) {
+                    return;
+                }
+                discardPage(victim);
+            }
+            Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            //never replace a frame, it may be newer than the disk copy
+            if (bp.putIfAbsent(pid, p) == null) {
+                part.resident.incrementAndGet();
+                part.evictionPolicy.recordAccess(pid);
+                readAheadPages.incrementAndGet();
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor readAheadExecutor() {
+        if (readAheadExecutor == null) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+            readAheadExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(MAX_QUEUED_READ_AHEAD),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "simpledb-read-ahead");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    },
+                    new ThreadPoolExecutor.DiscardPolicy());
+            readAheadExecutor.allowCoreThreadTimeOut(true);
+        }
+        return readAheadExecutor;
+    }
+
+    /** Return how many pages sequential scans read ahead; 0 turns read-ahead off */
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+
+    public void setReadAheadDepth(int pages) {
+        this.readAheadDepth = pages;
+    }
+
+    /** Return the number of page requests that found the page in the pool */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Return the number of page requests that had to read the page in */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Return the number of pages loaded by read-ahead so far */
+    public long getReadAheadCount() {
+        return readAheadPages.get();
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -123,11 +546,118 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Lock one row of a row-locked table for tid, blocking like getPage does.
+     * READ_ONLY takes a shared and READ_WRITE an exclusive row lock.
+     */
+    public void lockRow(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        try {
+            lockManager.acquireRowLock(rid, tid, perm.equals(Permissions.READ_WRITE));
+        } catch (InterruptedException ie){
+        }
+    }
+
+    /**
+     * Lock one row exclusively for tid if that needs no waiting; used to
+     * pick a free slot for an insert.
+     */
+    public boolean tryLockRow(TransactionId tid, RecordId rid) {
+        return lockManager.tryRowLock(rid, tid);
+    }
+
+    /** Return true if the specified transaction has a lock covering the specified row */
+    public boolean holdsRowLock(TransactionId tid, RecordId rid) {
+        return lockManager.holdsRowLock(tid, rid);
+    }
+
+    /**
+     * Choose whether writers of a table lock single rows instead of whole
+     * pages. Scans of a row-locked table see the committed version of rows
+     * other transactions are changing, instead of waiting for them.
+     */
+    public void setRowLocking(int tableId, boolean enabled) {
+        if (enabled) {
+            rowLockedTables.add(tableId);
+        } else {
+            rowLockedTables.remove(tableId);
+        }
+    }
+
+    /** Return true if writers of the table lock single rows */
+    public boolean isRowLocking(int tableId) {
+        return rowLockedTables.contains(tableId);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         return lockManager.holdsLock(tid, p);
     }
 
+    /** Return the number of deadlocks the lock manager has broken so far */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
+    }
+
+    /**
+     * Choose how lock conflicts are handled: deadlock detection (the
+     * default) or wait-die, wound-wait or no-wait prevention.
+     */
+    public void setDeadlockPolicy(LockManager.DeadlockPolicy policy) {
+        lockManager.setDeadlockPolicy(policy);
+    }
+
+    /** Return the number of transactions the deadlock prevention policy aborted */
+    public long getPreventionAbortCount() {
+        return lockManager.getPreventionAbortCount();
+    }
+
+    /**
+     * Lock a whole table for tid, blocking like getPage does. READ_ONLY takes
+     * an S lock and READ_WRITE an X lock; afterwards getPage takes no page
+     * locks on the table for the access the table lock covers.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm the requested permissions on the table
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        LockMode mode = perm.equals(Permissions.READ_ONLY) ? LockMode.S : LockMode.X;
+        try {
+            lockManager.acquireTableLock(tableId, tid, mode);
+        } catch (InterruptedException ie){
+        }
+    }
+
+    /**
+     * Take an intention lock on a whole table for tid: IS for READ_ONLY
+     * and IX for READ_WRITE. Files that lock their own rows with lockRow,
+     * like LsmFile, use it so writers of different rows don't block each
+     * other, while table S and X locks still wait for them.
+     */
+    public void lockTableIntention(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        LockMode mode = perm.equals(Permissions.READ_ONLY) ? LockMode.IS : LockMode.IX;
+        try {
+            lockManager.acquireTableLock(tableId, tid, mode);
+        } catch (InterruptedException ie){
+        }
+    }
+
+    /**
+     * Set how many page locks a transaction may hold in one table before the
+     * lock manager escalates them to a single table lock.
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    /** Return the number of times page locks were escalated to a table lock */
+    public long getLockEscalationCount() {
+        return lockManager.getEscalationCount();
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -138,25 +668,102 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
        //write to disk only after commit (NO STEAL)
-        //get all pageId's associated with this tid, need to save changes and flush to disk
-        for (PageId pid : bp.keySet()) {
-            Page p = bp.get(pid);
-            //for each pid, if commit is true and this tid is the tid that modified the page
-            TransactionId dirtyTid = p.isDirty();
-            if (dirtyTid != null && tid.equals(p.isDirty())) {
-                //this tid modified this pid and commit = true -> flush to disk
-                if (commit) {
-                    Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
-                    Database.getLogFile().logCommit(tid);
-                    if(holdsLock(tid, pid)){
-                        p.setBeforeImage();
+        //only the pages this tid may have dirtied need to be looked at
+        Set<PageId> touched = dirtiedPages.remove(tid);
+        int visited = 0;
+        boolean logged = false;
+        //pages whose before image becomes the committed version once the
+        //commit record is durable
+        List<Page> committed = new ArrayList<Page>();
+        if (touched != null) {
+            for (PageId pid : touched) {
+                Page p = bp.get(pid);
+                //already evicted (and so flushed) or discarded
+                if (p == null) {
+                    continue;
+                }
+                visited++;
+                //row-locked pages are shared with other writers, so only
+                //this tid's rows are committed or rolled back
+                if (p instanceof HeapPage && ((HeapPage) p).hasRowChanges(tid)) {
+                    HeapPage hp = (HeapPage) p;
+                    if (commit) {
+                        //latched so commits to one page are logged in order
+                        synchronized (hp) {
+                            HeapPage before = hp.getBeforeImage();
+                            Database.getLogFile().logWrite(tid, before, hp.commitRows(tid));
+                        }
+                        logged = true;
+                    } else {
+                        hp.rollbackRows(tid);
+                    }
+                    continue;
+                }
+                //for each pid, if commit is true and this tid is the tid that modified the page
+                TransactionId dirtyTid = p.isDirty();
+                if (dirtyTid != null && tid.equals(dirtyTid)) {
+                    //this tid modified this pid and commit = true -> flush to disk
+                    if (commit) {
+                        Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                        logged = true;
+                        if(holdsLock(tid, pid)){
+                            committed.add(p);
+                        }
+                    } else {
+                    //otherwise, the page wasn't modified so we just remove this pg from bp because it matches disk
+                        discardPage(pid);
                     }
-                } else {
-                //otherwise, the page wasn't modified so we just remove this pg from bp because it matches disk
-                    discardPage(pid);
                 }
             }
         }
+        //bulk loaded pages are already on disk; they only need a commit
+        //record, or to be emptied again
+        Map<Integer, Integer> loads = bulkLoads.remove(tid);
+        if (loads != null) {
+            if (commit) {
+                logged = true;
+            } else {
+                for (Map.Entry<Integer, Integer> load : loads.entrySet()) {
+                    DbFile file = Database.getCatalog().getDatabaseFile(load.getKey());
+                    ((BulkLoadable) file).undoBulkLoad(load.getValue());
+                }
+            }
+        }
+        Set<Integer> lsm = lsmWrites.remove(tid);
+        if (lsm != null && commit) {
+            //a checkpoint between the commit record and the memtables
+            //getting the writes would truncate their only copy, so both
+            //happen under the monitor; the force waits outside it, where
+            //LSM commits can share one. tid's table locks keep the writes
+            //hidden from other transactions until it is done
+            synchronized (this) {
+                for (int tableId : lsm) {
+                    ((LsmFile) Database.getCatalog().getDatabaseFile(tableId)).logWrites(tid);
+                }
+                Database.getLogFile().appendCommit(tid);
+                for (int tableId : lsm) {
+                    ((LsmFile) Database.getCatalog().getDatabaseFile(tableId)).transactionComplete(tid, true);
+                }
+            }
+            Database.getLogFile().groupForce();
+        } else {
+            if (lsm != null) {
+                for (int tableId : lsm) {
+                    ((LsmFile) Database.getCatalog().getDatabaseFile(tableId)).transactionComplete(tid, false);
+                }
+            }
+            //one commit record and one (group) force for all of the pages
+            if (logged) {
+                Database.getLogFile().logCommit(tid);
+            }
+        }
+        //only now is the commit durable; if the force failed, the pages keep
+        //the before images a rollback or recovery still needs
+        for (Page p : committed) {
+            p.setBeforeImage();
+        }
+        lastCompletionPagesVisited = visited;
+        completionPagesVisited.addAndGet(visited);
         //after flushing/discarding all pages associated with this tid, release all locks.
         lockManager.releaseAllLocks(tid);
     }
@@ -190,7 +797,8 @@ public class BufferPool {
             //it was even there to begin with) from BP and replaces with new.
             //add as part of Lab2:
             //evictPage();
-            bp.put(p.getId(), p);
+            putChangedFrame(p);
+            noteDirtied(tid, p.getId());
         }
     }
 
@@ -214,7 +822,8 @@ public class BufferPool {
         ArrayList<Page> pages = file.deleteTuple(tid, t);
         for(Page p : pages){
             p.markDirty(true, tid);
-            bp.put(p.getId(), p);
+            putChangedFrame(p);
+            noteDirtied(tid, p.getId());
         }
     }
 
@@ -223,11 +832,22 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         //call flushPage() to execute
         for(PageId pid : bp.keySet()){
             flushPage(pid);
         }
+        //free space maps are only saved every so often; save them with the
+        //pages, so a checkpoint leaves them up to date
+        Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+        while (tables.hasNext()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(tables.next());
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).getFreeSpaceMap().save();
+            } else if (file instanceof SlottedHeapFile) {
+                ((SlottedHeapFile) file).getFreeSpaceMap().save();
+            }
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -237,79 +857,87 @@ public class BufferPool {
         
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
+
+        Does not take the partition latch, so the recovery code can call it
+        while holding the LogFile monitor.
     */
-    public synchronized void discardPage(PageId pid) {
-        bp.remove(pid);
+    public void discardPage(PageId pid) {
+        Partition part = partitionOf(pid);
+        if(bp.remove(pid) != null){
+            part.resident.decrementAndGet();
+        }
+        part.evictionPolicy.remove(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        //check to make sure this pid actually exists on this page
-        if(bp.containsKey(pid)){
-            Page pg = bp.get(pid);
-            if(pg.isDirty() != null){
-                //get the tid to check if dirty or not
-                TransactionId tid = pg.isDirty();
-                //append an update record to the log, with
-                //a before-image and after-image.
-                if (tid != null){
-                    Database.getLogFile().logWrite(tid, pg.getBeforeImage(), pg);
-                    Database.getLogFile().force();
+    private void flushPage(PageId pid) throws IOException {
+        //the partition latch keeps the page from being evicted while it is written
+        synchronized (partitionOf(pid)) {
+            //check to make sure this pid actually exists on this page
+            if(bp.containsKey(pid)){
+                Page pg = bp.get(pid);
+                if(pg.isDirty() != null){
+                    //get the tid to check if dirty or not
+                    TransactionId tid = pg.isDirty();
+                    //append an update record to the log, with
+                    //a before-image and after-image.
+                    if (tid != null){
+                        Database.getLogFile().logWrite(tid, pg.getBeforeImage(), pg);
+                        Database.getLogFile().groupForce();
+                    }
+                    //we only want to write to disk and change to NOT dirty if is already dirty
+                    if(tid != null){
+                        //get the HeapFile
+                        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                        //write to disk
+                        file.writePage(pg);
+                        //change Dirty = false
+                        pg.markDirty(false, tid);
+                    }
                 }
-                //we only want to write to disk and change to NOT dirty if is already dirty
-                if(tid != null){
-                    //get the HeapFile
+            }
+        }
+    }
+
+    /** Write all pages of the specified transaction to disk.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+        //only look at the pages this tid may have dirtied
+        Set<PageId> touched = dirtiedPages.get(tid);
+        if (touched == null) {
+            return;
+        }
+        for(PageId pid : touched){
+            synchronized (partitionOf(pid)) {
+                Page pg = bp.get(pid);
+                //determine if this pid is locked by this tid
+                if(pg != null && holdsLock(tid, pid)){
+                    pg.setBeforeImage();
                     DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
                     //write to disk
                     file.writePage(pg);
                     //change Dirty = false
                     pg.markDirty(false, tid);
+                    lockManager.releaseLock(pid, tid);
                 }
             }
         }
     }
 
-    /** Write all pages of the specified transaction to disk.
-     */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        //look at all the pages in the bufferPool
-        for(PageId pid : bp.keySet()){
-            Page pg = bp.get(pid);
-            //determine if this pid is locked by this tid
-            if(holdsLock(tid, pid)){
-                pg.setBeforeImage();
-                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                //write to disk
-                file.writePage(pg);
-                //change Dirty = false
-                pg.markDirty(false, tid);
-              lockManager.releaseLock(pid, tid);
-          }
-        }
-    }
-
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is picked by the partition's EvictionPolicy, which prefers
+     * clean pages and only hands back a dirty one if every page is dirty.
+     * Must be called while holding the partition latch.
      */
-    private synchronized void evictPage() throws DbException {
-        PageId tryThisPid = null;
-        //look at every page trying to find one that hasn't been modified
-        for(PageId pid : bp.keySet()){
-            Page pg = bp.get(pid);
-            //if the page is not dirty, we can try to evict it
-            if(pg.isDirty() == null){
-                tryThisPid = pid;
-            }
-        }
-        //otherwise if all pages were dirty
+    private void evictPage(Partition part) throws DbException {
+        PageId tryThisPid = part.evictionPolicy.chooseVictim(bp);
         if(tryThisPid == null){
-            //evict the first page
-            ArrayList<PageId> pid = new ArrayList<PageId>(bp.keySet());
-            tryThisPid = pid.get(0);
+            throw new DbException("No page to evict.");
         }
         try{
             flushPage(tryThisPid);
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Loads the lines of a delimited text file into the tableId specified in the
+ * constructor with the table file's bulkLoad, which for a HeapFile packs them
+ * straight into new pages instead of inserting them one at a time. This is
+ * the operator behind the parser's COPY statement.
+ *
+ * @see BulkLoadable#bulkLoad
+ */
+public class BulkLoad extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    TransactionId tid;
+    File file;
+    int tableId;
+    char fieldSeparator;
+    TupleDesc td;
+    boolean loaded = false;
+
+    /**
+     * Constructor.
+     *
+     * @param t
+     *            The transaction running the load.
+     * @param file
+     *            The text file to load, one tuple per line.
+     * @param tableId
+     *            The table to load the tuples into; its file has to be BulkLoadable.
+     * @param fieldSeparator
+     *            The character between the fields of a line.
+     */
+    public BulkLoad(TransactionId t, File file, int tableId, char fieldSeparator) {
+        this.tid = t;
+        this.file = file;
+        this.tableId = tableId;
+        this.fieldSeparator = fieldSeparator;
+        Type[] type = new Type[]{Type.INT_TYPE};
+        String[] field = new String[]{"Number_Loaded"};
+        td = new TupleDesc(type, field);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        this.loaded = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.loaded = false;
+    }
+
+    //the parsed lines of the file, read as the load asks for them
+    private static class LineIterator implements Iterator<Tuple> {
+        final BufferedReader reader;
+        final TupleDesc td;
+        final char fieldSeparator;
+        String line;
+
+        LineIterator(BufferedReader reader, TupleDesc td, char fieldSeparator) throws IOException {
+            this.reader = reader;
+            this.td = td;
+            this.fieldSeparator = fieldSeparator;
+            advance();
+        }
+
+        private void advance() throws IOException {
+            do {
+                line = reader.readLine();
+            } while (line != null && line.trim().isEmpty());
+        }
+
+        public boolean hasNext() {
+            return line != null;
+        }
+
+        public Tuple next() {
+            if (line == null) {
+                throw new NoSuchElementException();
+            }
+            try {
+                Tuple t = HeapFileEncoder.parseTuple(line, td, fieldSeparator);
+                advance();
+                return t;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Loads the file into the table. It returns a one field tuple containing
+     * the number of loaded records.
+     *
+     * @return A 1-field tuple containing the number of loaded records, or
+     *         null if called more than once.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (loaded) {
+            return null;
+        }
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbFile instanceof BulkLoadable)) {
+            throw new DbException("This table's file can't be bulk loaded.");
+        }
+        int counter;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16);
+            try {
+                counter = ((BulkLoadable) dbFile).bulkLoad(tid,
+                        new LineIterator(reader, dbFile.getTupleDesc(), fieldSeparator));
+            } finally {
+                reader.close();
+            }
+        } catch (UncheckedIOException e) {
+            throw new DbException("Bulk load failed: " + e.getCause().getMessage());
+        } catch (IOException e) {
+            throw new DbException("Bulk load failed: " + e.getMessage());
+        }
+        loaded = true;
+        Tuple output = new Tuple(td);
+        output.setField(0, new IntField(counter));
+        return output;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+    }
+}
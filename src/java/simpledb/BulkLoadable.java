@@ -0,0 +1,31 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * A DbFile that can append many tuples at once, bypassing insertTuple and
+ * the BufferPool. A load is logged with a single BULK_LOAD record naming
+ * where it starts, and undone from there if its transaction aborts.
+ *
+ * @see LogFile#logBulkLoad
+ * @see BulkLoad
+ */
+public interface BulkLoadable extends DbFile {
+
+    /**
+     * Appends the tuples to the file on behalf of tid, which takes an
+     * exclusive lock on the table. The tuples are on disk when this returns.
+     *
+     * @return the number of tuples loaded
+     * @throws DbException if a tuple doesn't match the file's TupleDesc
+     */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException;
+
+    /**
+     * Undoes the loads that started at first, the position a bulkLoad logged,
+     * because their transaction aborted or never committed.
+     */
+    public void undoBulkLoad(int first) throws IOException;
+}
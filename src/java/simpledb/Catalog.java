@@ -162,6 +162,12 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the format name (field type [pk], ...) [format], where
+     * the optional format is heap (a HeapFile, the default), pax (a HeapFile
+     * with the PAX page layout), slotted (a SlottedHeapFile, which stores
+     * strings at their actual length), column (a ColumnFile in the
+     * directory name.col) or lsm (an LsmFile in the directory name.lsm,
+     * sorted on the primary key, or on the first field without one).
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -202,7 +208,26 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                //an optional file format follows the fields; heap by default
+                String format = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf;
+                if (format.equals("") || format.equals("heap"))
+                    tabHf = new HeapFile(dataFile, t);
+                else if (format.equals("pax"))
+                    tabHf = new HeapFile(dataFile, t, HeapFile.Layout.PAX);
+                else if (format.equals("slotted"))
+                    tabHf = new SlottedHeapFile(dataFile, t);
+                else if (format.equals("column"))
+                    tabHf = new ColumnFile(new File(baseFolder+"/"+name + ".col"), t);
+                else if (format.equals("lsm"))
+                    tabHf = new LsmFile(new File(baseFolder+"/"+name + ".lsm"), t,
+                            primaryKey.equals("") ? 0 : names.indexOf(primaryKey));
+                else {
+                    System.out.println("Unknown file format " + format);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
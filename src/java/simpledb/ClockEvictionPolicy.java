@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK (second chance) replacement. Every frame has a reference bit that is
+ * set when its page is accessed; the clock hand sweeps the frames, clearing
+ * set bits and stopping at the first clean page whose bit is already clear.
+ * Each access is O(1) and each eviction is O(1) amortized.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    //frames in clock order; a null entry is a free frame
+    private final ArrayList<PageId> frames;
+    private final ArrayList<Boolean> referenced;
+    //page to its index in frames
+    private final HashMap<PageId, Integer> frameOf;
+    //indexes of frames that were freed by remove() and can be reused
+    private final ArrayDeque<Integer> freeFrames;
+    private int hand;
+
+    public ClockEvictionPolicy() {
+        this.frames = new ArrayList<PageId>();
+        this.referenced = new ArrayList<Boolean>();
+        this.frameOf = new HashMap<PageId, Integer>();
+        this.freeFrames = new ArrayDeque<Integer>();
+        this.hand = 0;
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame, true);
+            return;
+        }
+        //new page, reuse a freed frame if there is one
+        if (!freeFrames.isEmpty()) {
+            frame = freeFrames.pop();
+            frames.set(frame, pid);
+            referenced.set(frame, true);
+        } else {
+            frame = frames.size();
+            frames.add(pid);
+            referenced.add(true);
+        }
+        frameOf.put(pid, frame);
+    }
+
+    public synchronized void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            referenced.set(frame, false);
+            freeFrames.push(frame);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Map<PageId, Page> pages) {
+        if (frameOf.isEmpty()) {
+            return null;
+        }
+        int n = frames.size();
+        //two full sweeps clear every reference bit, so if no clean page with a
+        //clear bit was found by then every resident page is dirty
+        PageId fallback = null;
+        for (int step = 0; step < 2 * n; step++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(frame);
+            if (pid == null) {
+                continue;
+            }
+            Page pg = pages.get(pid);
+            if (pg == null) {
+                //evicted, but an unlatched hit recorded it again; drop it
+                //rather than offer a page that is not resident
+                remove(pid);
+                continue;
+            }
+            if (referenced.get(frame)) {
+                referenced.set(frame, false);
+                continue;
+            }
+            if (pg.isDirty() == null) {
+                return pid;
+            }
+            if (fallback == null) {
+                fallback = pid;
+            }
+        }
+        return fallback;
+    }
+
+    public EvictionPolicy emptyCopy() {
+        return new ClockEvictionPolicy();
+    }
+}
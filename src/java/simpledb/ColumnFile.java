@@ -0,0 +1,554 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * ColumnFile is a DbFile that stores each column of a table in its own
+ * segment file, so a scan that needs a few columns of a wide table only
+ * reads those columns. The table is a directory holding one file per
+ * column, named c0, c1, ..., and a metadata file, meta.
+ * <p>
+ * Rows are stored in row groups of up to getGroupRows() rows. Each row
+ * group has one segment in every column file, encoded by ColumnSegment with
+ * whichever encoding is smallest for its values. The metadata file lists,
+ * for every row group, its row count and, for every column, the offset and
+ * length of its segment and, for INT columns, the segment's minimum and
+ * maximum, so scans can skip row groups a predicate rules out without
+ * reading them.
+ * <p>
+ * Column files are written in bulk: tuples are appended with bulkLoad (or
+ * the parser's COPY statement), not insertTuple, and can't be deleted.
+ * The segments of a load are appended to the column files and forced to
+ * disk before the metadata file is replaced by a new one that lists them,
+ * so a crash in the middle of a load leaves the table as it was. Pages and
+ * the BufferPool are not used; transactions lock the whole table.
+ *
+ * @see ColumnSegment
+ * @see ColumnScan
+ */
+public class ColumnFile implements BulkLoadable {
+
+    /** Default number of rows in a row group. */
+    public static final int DEFAULT_GROUP_ROWS = 16 * 1024;
+
+    private final File dir;
+    private final TupleDesc td;
+    private volatile int groupRows = DEFAULT_GROUP_ROWS;
+    //the row groups, replaced as a whole by loads; null until first read
+    private volatile List<RowGroup> groups;
+    //per column, opened on first use
+    private final FileChannel[] channels;
+
+    /** Where the segments of one row group are, and their INT ranges. */
+    static final class RowGroup {
+        final int rows;
+        final long[] offsets;
+        final int[] lengths;
+        final int[] mins;
+        final int[] maxs;
+
+        RowGroup(int rows, int numColumns) {
+            this.rows = rows;
+            this.offsets = new long[numColumns];
+            this.lengths = new int[numColumns];
+            this.mins = new int[numColumns];
+            this.maxs = new int[numColumns];
+        }
+    }
+
+    /**
+     * Constructs a column file stored in the given directory, which is
+     * created on the first load.
+     */
+    public ColumnFile(File dir, TupleDesc td) {
+        this.dir = dir;
+        this.td = td;
+        this.channels = new FileChannel[td.numFields()];
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this file: the hash of the absolute
+     * name of its directory.
+     */
+    public int getId() {
+        return dir.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Set how many rows the row groups of later loads hold. */
+    public void setGroupRows(int rows) {
+        groupRows = rows;
+    }
+
+    public int getGroupRows() {
+        return groupRows;
+    }
+
+    /**
+     * Returns the number of row groups.
+     *
+     * @throws UncheckedIOException if the metadata file can't be read
+     */
+    public int numGroups() {
+        return groups().size();
+    }
+
+    /**
+     * Returns the number of rows in the table.
+     *
+     * @throws UncheckedIOException if the metadata file can't be read
+     */
+    public long numRows() {
+        long rows = 0;
+        for (RowGroup g : groups()) {
+            rows += g.rows;
+        }
+        return rows;
+    }
+
+    /** ColumnFiles have no pages, so no page id is valid. */
+    public Page readPage(PageId id) {
+        throw new IllegalArgumentException("a ColumnFile has no pages");
+    }
+
+    /** ColumnFiles have no pages, so no page id is valid. */
+    public void writePage(Page p) throws IOException {
+        throw new IllegalArgumentException("a ColumnFile has no pages");
+    }
+
+    /** Column files are only appended to in bulk; see bulkLoad. */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("tuples are added to a ColumnFile with bulkLoad");
+    }
+
+    /** Column files are only appended to in bulk; tuples can't be deleted. */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("tuples can't be deleted from a ColumnFile");
+    }
+
+    private File columnFile(int column) {
+        return new File(dir, "c" + column);
+    }
+
+    private File metaFile() {
+        return new File(dir, "meta");
+    }
+
+    private synchronized FileChannel channel(int column) throws IOException {
+        if (channels[column] == null || !channels[column].isOpen()) {
+            dir.mkdirs();
+            channels[column] = FileChannel.open(columnFile(column).toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return channels[column];
+    }
+
+    /** Closes the column files; they are opened again when next used. */
+    public synchronized void close() throws IOException {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                channels[i].close();
+                channels[i] = null;
+            }
+        }
+    }
+
+    //the row groups, read from the metadata file the first time; an error
+    //reading it is an UncheckedIOException
+    List<RowGroup> groups() {
+        List<RowGroup> g = groups;
+        if (g != null) {
+            return g;
+        }
+        synchronized (this) {
+            if (groups == null) {
+                groups = readMeta();
+            }
+            return groups;
+        }
+    }
+
+    //groups() for callers that can throw IOException
+    private List<RowGroup> loadGroups() throws IOException {
+        try {
+            return groups();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private List<RowGroup> readMeta() {
+        File meta = metaFile();
+        if (!meta.exists()) {
+            return Collections.emptyList();
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(meta)));
+            try {
+                int n = in.readInt();
+                int columns = in.readInt();
+                if (columns != td.numFields()) {
+                    throw new IOException("ColumnFile has " + columns + " columns, expected " + td.numFields());
+                }
+                List<RowGroup> read = new ArrayList<RowGroup>(n);
+                for (int i = 0; i < n; i++) {
+                    RowGroup g = new RowGroup(in.readInt(), columns);
+                    for (int c = 0; c < columns; c++) {
+                        g.offsets[c] = in.readLong();
+                        g.lengths[c] = in.readInt();
+                        g.mins[c] = in.readInt();
+                        g.maxs[c] = in.readInt();
+                    }
+                    read.add(g);
+                }
+                return Collections.unmodifiableList(read);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //write the row groups to a new metadata file and move it over the old
+    //one, so readers see either all of a load or none of it
+    private void writeMeta(final List<RowGroup> groups) throws IOException {
+        dir.mkdirs();
+        Utility.writeAtomically(metaFile(), out -> {
+            out.writeInt(groups.size());
+            out.writeInt(td.numFields());
+            for (RowGroup g : groups) {
+                out.writeInt(g.rows);
+                for (int c = 0; c < td.numFields(); c++) {
+                    out.writeLong(g.offsets[c]);
+                    out.writeInt(g.lengths[c]);
+                    out.writeInt(g.mins[c]);
+                    out.writeInt(g.maxs[c]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends the tuples as new row groups. The transaction takes an
+     * exclusive lock on the table, and a BULK_LOAD log record with the
+     * number of the first new row group is written first, so the groups
+     * are dropped again if the transaction aborts.
+     *
+     * @see LogFile#logBulkLoad
+     */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().lockTable(tid, getId(), Permissions.READ_WRITE);
+        List<RowGroup> old = loadGroups();
+        int first = old.size();
+        Database.getLogFile().logBulkLoad(tid, getId(), first);
+        Database.getBufferPool().noteBulkLoad(tid, getId(), first);
+
+        List<RowGroup> added = new ArrayList<RowGroup>();
+        //where the new segments go: the ends of the last committed group's
+        //segments, so segments an aborted load left past them are overwritten
+        long[] ends = new long[td.numFields()];
+        if (!old.isEmpty()) {
+            RowGroup last = old.get(old.size() - 1);
+            for (int c = 0; c < ends.length; c++) {
+                ends[c] = last.offsets[c] + last.lengths[c];
+            }
+        }
+        int rows = groupRows;
+        int[][] ints = new int[td.numFields()][];
+        String[][] strings = new String[td.numFields()][];
+        for (int c = 0; c < ends.length; c++) {
+            if (td.getFieldType(c) == Type.INT_TYPE) {
+                ints[c] = new int[rows];
+            } else {
+                strings[c] = new String[rows];
+            }
+        }
+        int loaded = 0;
+        int n = 0;
+        while (tuples.hasNext()) {
+            Tuple t = tuples.next();
+            if (t.getTupleDesc() != td && !td.equals(t.getTupleDesc())) {
+                throw new DbException("The tupleDesc's dont match.");
+            }
+            for (int c = 0; c < ends.length; c++) {
+                if (ints[c] != null) {
+                    ints[c][n] = ((IntField) t.getField(c)).getValue();
+                } else {
+                    strings[c][n] = ((StringField) t.getField(c)).getValue();
+                }
+            }
+            n++;
+            loaded++;
+            if (n == rows) {
+                added.add(writeGroup(ints, strings, n, ends));
+                n = 0;
+            }
+        }
+        if (n > 0) {
+            added.add(writeGroup(ints, strings, n, ends));
+        }
+        if (added.isEmpty()) {
+            return loaded;
+        }
+        for (int c = 0; c < ends.length; c++) {
+            channel(c).force(false);
+        }
+        synchronized (this) {
+            List<RowGroup> all = new ArrayList<RowGroup>(loadGroups());
+            all.addAll(added);
+            writeMeta(all);
+            groups = Collections.unmodifiableList(all);
+        }
+        return loaded;
+    }
+
+    //encode and append the segments of one row group
+    private RowGroup writeGroup(int[][] ints, String[][] strings, int n, long[] ends) throws IOException {
+        RowGroup g = new RowGroup(n, ends.length);
+        for (int c = 0; c < ends.length; c++) {
+            byte[] segment;
+            if (ints[c] != null) {
+                segment = ColumnSegment.encodeInts(ints[c], n);
+                int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+                for (int i = 0; i < n; i++) {
+                    min = Math.min(min, ints[c][i]);
+                    max = Math.max(max, ints[c][i]);
+                }
+                g.mins[c] = min;
+                g.maxs[c] = max;
+            } else {
+                segment = ColumnSegment.encodeStrings(strings[c], n);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(segment);
+            FileChannel ch = channel(c);
+            while (buf.hasRemaining()) {
+                ch.write(buf, ends[c] + buf.position());
+            }
+            g.offsets[c] = ends[c];
+            g.lengths[c] = segment.length;
+            ends[c] += segment.length;
+        }
+        return g;
+    }
+
+    /**
+     * Drops the row groups from firstGroup on; their segments are
+     * overwritten by the next load. Called when the loading transaction
+     * aborts, and by recovery for loads that never committed.
+     */
+    public synchronized void undoBulkLoad(int firstGroup) throws IOException {
+        List<RowGroup> all = loadGroups();
+        if (firstGroup >= all.size()) {
+            return;
+        }
+        List<RowGroup> kept = new ArrayList<RowGroup>(all.subList(0, firstGroup));
+        writeMeta(kept);
+        groups = Collections.unmodifiableList(kept);
+    }
+
+    /**
+     * Returns whether rows of the row group may satisfy p, judging INT
+     * predicates by the group's minimum and maximum.
+     */
+    boolean mayMatch(RowGroup g, Predicate p) {
+        int c = p.getField();
+        if (td.getFieldType(c) != Type.INT_TYPE) {
+            return true;
+        }
+        int v = ((IntField) p.getOperand()).getValue();
+        int min = g.mins[c];
+        int max = g.maxs[c];
+        switch (p.getOp()) {
+        case EQUALS:
+            return min <= v && v <= max;
+        case NOT_EQUALS:
+            return min != v || max != v;
+        case GREATER_THAN:
+            return max > v;
+        case GREATER_THAN_OR_EQ:
+            return max >= v;
+        case LESS_THAN:
+            return min < v;
+        case LESS_THAN_OR_EQ:
+            return min <= v;
+        default:
+            return true;
+        }
+    }
+
+    //read and decode one column of a row group
+    Field[] readColumn(RowGroup g, int column) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(g.lengths[column]);
+        FileChannel ch = channel(column);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, g.offsets[column] + buf.position()) < 0) {
+                throw new IOException("column file " + column + " is shorter than its metadata");
+            }
+        }
+        buf.flip();
+        Field[] fields = new Field[g.rows];
+        if (td.getFieldType(column) == Type.INT_TYPE) {
+            int[] values = ColumnSegment.decodeInts(buf, g.rows);
+            for (int i = 0; i < g.rows; i++) {
+                fields[i] = new IntField(values[i]);
+            }
+        } else {
+            String[] values = ColumnSegment.decodeStrings(buf, g.rows);
+            for (int i = 0; i < g.rows; i++) {
+                fields[i] = new StringField(values[i], Type.STRING_LEN);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Returns the TupleDesc of the given fields of this file, in that order.
+     */
+    public TupleDesc projectTupleDesc(int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] all = new int[td.numFields()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        return iterator(tid, all, null);
+    }
+
+    /**
+     * Returns an iterator over the rows that only reads the given columns
+     * (and the filter's), returning tuples of those fields in that order.
+     *
+     * @param filter a predicate on a column of the table the rows returned
+     *   have to satisfy, or null for all rows; row groups whose minimum and
+     *   maximum rule it out are not read
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields, Predicate filter) {
+        return new ColumnFileIterator(tid, fields.clone(), filter);
+    }
+
+    private class ColumnFileIterator extends AbstractDbFileIterator {
+        final TransactionId tid;
+        final int[] fields;
+        final Predicate filter;
+        final TupleDesc projected;
+        //the row groups when the scan was opened, and the next one to read
+        List<RowGroup> snapshot;
+        int nextGroup;
+        //the columns of the current group, and the next row in it
+        Field[][] columns;
+        Field[] filterColumn;
+        int row;
+
+        ColumnFileIterator(TransactionId tid, int[] fields, Predicate filter) {
+            this.tid = tid;
+            this.fields = fields;
+            this.filter = filter;
+            this.projected = projectTupleDesc(fields);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            Database.getBufferPool().lockTable(tid, getId(), Permissions.READ_ONLY);
+            try {
+                snapshot = loadGroups();
+            } catch (IOException e) {
+                throw new DbException("couldn't read the row groups: " + e.getMessage());
+            }
+            nextGroup = 0;
+            columns = null;
+            row = 0;
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (snapshot == null) {
+                return null;
+            }
+            while (true) {
+                if (columns == null || row == columns[0].length) {
+                    if (!nextGroup()) {
+                        return null;
+                    }
+                    continue;
+                }
+                int r = row++;
+                if (filterColumn != null && !filterColumn[r].compare(filter.getOp(), filter.getOperand())) {
+                    continue;
+                }
+                Tuple t = new Tuple(projected);
+                for (int i = 0; i < fields.length; i++) {
+                    t.setField(i, columns[i][r]);
+                }
+                return t;
+            }
+        }
+
+        //read the projected columns of the next group the filter may match
+        private boolean nextGroup() throws DbException {
+            while (nextGroup < snapshot.size()) {
+                RowGroup g = snapshot.get(nextGroup++);
+                if (filter != null && !mayMatch(g, filter)) {
+                    continue;
+                }
+                try {
+                    Map<Integer, Field[]> read = new HashMap<Integer, Field[]>();
+                    columns = new Field[Math.max(fields.length, 1)][];
+                    for (int i = 0; i < fields.length; i++) {
+                        columns[i] = read.get(fields[i]);
+                        if (columns[i] == null) {
+                            columns[i] = readColumn(g, fields[i]);
+                            read.put(fields[i], columns[i]);
+                        }
+                    }
+                    if (fields.length == 0) {
+                        columns[0] = new Field[g.rows];
+                    }
+                    filterColumn = null;
+                    if (filter != null) {
+                        filterColumn = read.get(filter.getField());
+                        if (filterColumn == null) {
+                            filterColumn = readColumn(g, filter.getField());
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new DbException("couldn't read row group: " + e.getMessage());
+                }
+                row = 0;
+                return true;
+            }
+            return false;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            snapshot = null;
+            columns = null;
+            filterColumn = null;
+        }
+    }
+}
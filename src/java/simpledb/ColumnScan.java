@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ColumnScan reads some of the columns of a table stored in a ColumnFile,
+ * reading only those columns' segments. An optional predicate on any column
+ * of the table is applied during the scan, and row groups whose minimum and
+ * maximum rule it out are skipped without being read.
+ *
+ * @see ColumnFile
+ */
+public class ColumnScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    TransactionId tid;
+    int tableId;
+    String tableAlias;
+    int[] fields;
+    Predicate filter;
+    DbFileIterator itr;
+
+    /**
+     * Constructor.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableId
+     *            The table to scan; its file has to be a ColumnFile.
+     * @param tableAlias
+     *            The alias of the table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName, like SeqScan's.
+     * @param fields
+     *            The indexes of the columns returned, in that order.
+     * @param filter
+     *            A predicate the returned rows satisfy, on a column of the
+     *            table (not necessarily a returned one), or null for all rows.
+     */
+    public ColumnScan(TransactionId tid, int tableId, String tableAlias, int[] fields, Predicate filter) {
+        this.tid = tid;
+        this.tableId = tableId;
+        this.tableAlias = tableAlias;
+        this.fields = fields.clone();
+        this.filter = filter;
+    }
+
+    public ColumnScan(TransactionId tid, int tableId, String tableAlias, int[] fields) {
+        this(tid, tableId, tableAlias, fields, null);
+    }
+
+    private ColumnFile file() throws DbException {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof ColumnFile)) {
+            throw new DbException("ColumnScan needs a table stored in a ColumnFile.");
+        }
+        return (ColumnFile) f;
+    }
+
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        String[] names = new String[fields.length];
+        Type[] types = new Type[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            names[i] = tableAlias + "." + td.getFieldName(fields[i]);
+            types[i] = td.getFieldType(fields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        itr = file().iterator(tid, fields, filter);
+        itr.open();
+    }
+
+    public void close() {
+        super.close();
+        if (itr != null) {
+            itr.close();
+            itr = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        itr.rewind();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (itr != null && itr.hasNext()) {
+            return itr.next();
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+    }
+}
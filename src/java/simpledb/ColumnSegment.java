@@ -0,0 +1,261 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * ColumnSegment encodes the values of one column of a ColumnFile row group,
+ * picking whichever encoding is smallest for the values at hand. A segment
+ * starts with a byte naming its encoding:
+ * <ul>
+ * <li>BIT_PACKED (ints): the minimum, the bit width, then each value minus
+ * the minimum in that many bits.
+ * <li>RUN_LENGTH (ints): the number of runs, then a value and a length for
+ * each run.
+ * <li>DICTIONARY (ints or strings): the distinct values, then each value's
+ * index in the dictionary, bit packed.
+ * <li>PLAIN (strings): each string's length as an unsigned short, then its
+ * bytes.
+ * </ul>
+ * Packed bits fill each byte from its lowest bit up. The number of values is
+ * not stored; it is the row count of the row group.
+ *
+ * @see ColumnFile
+ */
+final class ColumnSegment {
+
+    static final byte BIT_PACKED = 1;
+    static final byte RUN_LENGTH = 2;
+    static final byte DICTIONARY = 3;
+    static final byte PLAIN = 4;
+
+    /** Columns with more distinct values than this are not dictionary encoded. */
+    static final int MAX_DICTIONARY = 1 << 16;
+
+    private ColumnSegment() {
+    }
+
+    //bits needed for values up to max
+    private static int width(long max) {
+        return 64 - Long.numberOfLeadingZeros(max);
+    }
+
+    private static int packedBytes(int n, int width) {
+        return (int) (((long) n * width + 7) / 8);
+    }
+
+    //write the low width bits of each value
+    private static void pack(DataOutputStream out, long[] values, int n, int width) throws IOException {
+        long mask = width == 64 ? -1L : (1L << width) - 1;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < n; i++) {
+            acc |= (values[i] & mask) << bits;
+            bits += width;
+            while (bits >= 8) {
+                out.write((int) acc);
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0) {
+            out.write((int) acc);
+        }
+    }
+
+    private static long[] unpack(ByteBuffer in, int n, int width) {
+        long mask = (1L << width) - 1;
+        long[] values = new long[n];
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < n; i++) {
+            while (bits < width) {
+                acc |= (in.get() & 0xffL) << bits;
+                bits += 8;
+            }
+            values[i] = acc & mask;
+            acc >>>= width;
+            bits -= width;
+        }
+        return values;
+    }
+
+    /** Encode the first n values of an INT column. */
+    static byte[] encodeInts(int[] values, int n) throws IOException {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        int runs = 0;
+        Map<Integer, Integer> dict = new LinkedHashMap<Integer, Integer>();
+        for (int i = 0; i < n; i++) {
+            int v = values[i];
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            if (i == 0 || v != values[i - 1]) {
+                runs++;
+            }
+            if (dict != null && !dict.containsKey(v)) {
+                dict.put(v, dict.size());
+                if (dict.size() > MAX_DICTIONARY) {
+                    dict = null;
+                }
+            }
+        }
+        int packedWidth = n == 0 ? 0 : width((long) max - min);
+        int packedSize = 6 + packedBytes(n, packedWidth);
+        int runSize = 5 + 8 * runs;
+        int dictWidth = dict == null ? 0 : width(Math.max(dict.size() - 1, 0));
+        int dictSize = dict == null ? Integer.MAX_VALUE : 6 + 4 * dict.size() + packedBytes(n, dictWidth);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(packedSize, Math.min(runSize, dictSize)));
+        DataOutputStream out = new DataOutputStream(bytes);
+        long[] codes = new long[n];
+        if (runSize <= packedSize && runSize <= dictSize) {
+            out.writeByte(RUN_LENGTH);
+            out.writeInt(runs);
+            int start = 0;
+            for (int i = 1; i <= n; i++) {
+                if (i == n || values[i] != values[start]) {
+                    out.writeInt(values[start]);
+                    out.writeInt(i - start);
+                    start = i;
+                }
+            }
+        } else if (dictSize < packedSize) {
+            out.writeByte(DICTIONARY);
+            out.writeInt(dict.size());
+            for (int v : dict.keySet()) {
+                out.writeInt(v);
+            }
+            out.writeByte(dictWidth);
+            for (int i = 0; i < n; i++) {
+                codes[i] = dict.get(values[i]);
+            }
+            pack(out, codes, n, dictWidth);
+        } else {
+            out.writeByte(BIT_PACKED);
+            out.writeInt(min);
+            out.writeByte(packedWidth);
+            for (int i = 0; i < n; i++) {
+                codes[i] = (long) values[i] - min;
+            }
+            pack(out, codes, n, packedWidth);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Decode the n values of an INT column segment. */
+    static int[] decodeInts(ByteBuffer in, int n) throws IOException {
+        int[] values = new int[n];
+        byte encoding = in.get();
+        if (encoding == RUN_LENGTH) {
+            int runs = in.getInt();
+            int pos = 0;
+            for (int r = 0; r < runs; r++) {
+                int v = in.getInt();
+                int len = in.getInt();
+                Arrays.fill(values, pos, pos + len, v);
+                pos += len;
+            }
+        } else if (encoding == DICTIONARY) {
+            int[] dict = new int[in.getInt()];
+            for (int i = 0; i < dict.length; i++) {
+                dict[i] = in.getInt();
+            }
+            long[] codes = unpack(in, n, in.get());
+            for (int i = 0; i < n; i++) {
+                values[i] = dict[(int) codes[i]];
+            }
+        } else if (encoding == BIT_PACKED) {
+            int min = in.getInt();
+            long[] codes = unpack(in, n, in.get());
+            for (int i = 0; i < n; i++) {
+                values[i] = (int) (min + codes[i]);
+            }
+        } else {
+            throw new IOException("unknown int column encoding " + encoding);
+        }
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        int len = Math.min(s.length(), Type.STRING_LEN);
+        out.writeShort(len);
+        //one byte per char, like StringField.serialize
+        out.write(s.substring(0, len).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = in.getShort() & 0xffff;
+        String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.ISO_8859_1);
+        in.position(in.position() + len);
+        return s;
+    }
+
+    /** Encode the first n values of a STRING column. */
+    static byte[] encodeStrings(String[] values, int n) throws IOException {
+        int plainSize = 1;
+        Map<String, Integer> dict = new LinkedHashMap<String, Integer>();
+        int dictBytes = 0;
+        for (int i = 0; i < n; i++) {
+            int len = 2 + Math.min(values[i].length(), Type.STRING_LEN);
+            plainSize += len;
+            if (dict != null && !dict.containsKey(values[i])) {
+                dict.put(values[i], dict.size());
+                dictBytes += len;
+                if (dict.size() > MAX_DICTIONARY) {
+                    dict = null;
+                }
+            }
+        }
+        int dictWidth = dict == null ? 0 : width(Math.max(dict.size() - 1, 0));
+        int dictSize = dict == null ? Integer.MAX_VALUE : 6 + dictBytes + packedBytes(n, dictWidth);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(plainSize, dictSize));
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (dictSize < plainSize) {
+            out.writeByte(DICTIONARY);
+            out.writeInt(dict.size());
+            for (String s : dict.keySet()) {
+                writeString(out, s);
+            }
+            out.writeByte(dictWidth);
+            long[] codes = new long[n];
+            for (int i = 0; i < n; i++) {
+                codes[i] = dict.get(values[i]);
+            }
+            pack(out, codes, n, dictWidth);
+        } else {
+            out.writeByte(PLAIN);
+            for (int i = 0; i < n; i++) {
+                writeString(out, values[i]);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Decode the n values of a STRING column segment. */
+    static String[] decodeStrings(ByteBuffer in, int n) throws IOException {
+        String[] values = new String[n];
+        byte encoding = in.get();
+        if (encoding == DICTIONARY) {
+            String[] dict = new String[in.getInt()];
+            for (int i = 0; i < dict.length; i++) {
+                dict[i] = readString(in);
+            }
+            long[] codes = unpack(in, n, in.get());
+            for (int i = 0; i < n; i++) {
+                values[i] = dict[(int) codes[i]];
+            }
+        } else if (encoding == PLAIN) {
+            for (int i = 0; i < n; i++) {
+                values[i] = readString(in);
+            }
+        } else {
+            throw new IOException("unknown string column encoding " + encoding);
+        }
+        return values;
+    }
+}
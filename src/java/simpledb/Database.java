@@ -55,11 +55,27 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, new ClockEvictionPolicy());
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that uses the given eviction policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
+        return resetBufferPool(pages, 1, policy);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * split into the given number of partitions and return it
+     */
+    public static BufferPool resetBufferPool(int pages, int partitions, EvictionPolicy policy) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, partitions, policy));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
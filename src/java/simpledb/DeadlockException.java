@@ -2,8 +2,12 @@ package simpledb;
 
 import java.lang.Exception;
 
-/** Exception that is thrown when a deadlock occurs. */
-public class DeadlockException extends Exception {
+/**
+ * Exception that is thrown when a deadlock occurs. The transaction that gets
+ * it was chosen as the victim and has to abort, so it is a
+ * TransactionAbortedException.
+ */
+public class DeadlockException extends TransactionAbortedException {
     private static final long serialVersionUID = 1L;
 
     public DeadlockException() {
@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.util.Map;
+
+/**
+ * EvictionPolicy decides which frame of the BufferPool is replaced when the
+ * pool is full. The BufferPool tells the policy about every page that is
+ * referenced or leaves the pool, so the policy can keep whatever per-frame
+ * state (reference bits, access history, ...) it needs and pick a victim
+ * without scanning the whole pool.
+ *
+ * @see BufferPool
+ * @see ClockEvictionPolicy
+ * @see LruKEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called every time a page is referenced through the BufferPool, both on a
+     * hit and right after the page is loaded into the pool.
+     *
+     * @param pid the page that was referenced
+     */
+    public void recordAccess(PageId pid);
+
+    /**
+     * Called when a page leaves the BufferPool (eviction or discard).
+     *
+     * @param pid the page that is no longer resident
+     */
+    public void remove(PageId pid);
+
+    /**
+     * Pick the page that should be evicted next. Clean pages should be
+     * preferred; a dirty page may only be returned if every resident page
+     * is dirty. A tracked page missing from frames is not resident (a hit
+     * can record an access just after the page was evicted); it must never
+     * be returned, and should be forgotten.
+     *
+     * @param frames the pages currently resident in the BufferPool, used to
+     *   check whether a candidate is dirty
+     * @return the page to evict, or null if the pool holds no pages
+     */
+    public PageId chooseVictim(Map<PageId, Page> frames);
+
+    /**
+     * Returns a new policy of the same kind and configuration that tracks no
+     * pages. A partitioned BufferPool uses this to give every partition its
+     * own replacement state.
+     */
+    public EvictionPolicy emptyCopy();
+}
@@ -0,0 +1,261 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap tracks roughly how many free slots each page of a HeapFile
+ * has, so inserts can go straight to a page with room instead of reading
+ * every page of the file. There is one byte per page: the number of free
+ * slots (capped at MAX_TRACKED), or UNKNOWN for pages that have not been
+ * seen since the map was created. SlottedHeapFile, whose records vary in
+ * size, stores units of free bytes instead of slots.
+ * <p>
+ * The map is only a hint. HeapPage updates it on every insert and delete,
+ * and HeapFile on every page read and write, but aborts and recovery can
+ * leave it stale; an insert that finds a page fuller than the map said just
+ * corrects the entry and moves on. The map lives in memory and is saved to
+ * a side file next to the heap file in one write: after SAVE_INTERVAL
+ * changes, when the BufferPool flushes all pages (so at every checkpoint),
+ * and on close. It is loaded from the side file when first used; changes
+ * lost in a crash only make it staler.
+ * <p>
+ * The side file starts with a header holding the file's logical and
+ * preallocated page counts, so preallocated space at the end of the heap
+ * file is not mistaken for pages after a restart.
+ *
+ * @Threadsafe, saves write the side file outside the map's monitor
+ * @see HeapFile
+ */
+public class FreeSpaceMap {
+
+    /** Entry value of a page whose free space is not known. */
+    public static final int UNKNOWN = 255;
+    /** Free slot counts above this are stored as MAX_TRACKED. */
+    public static final int MAX_TRACKED = 254;
+
+    /** Number of changes after which a page write saves the map. */
+    public static final int SAVE_INTERVAL = 256;
+
+    //logical pages and preallocated pages, both ints
+    private static final int HEADER_BYTES = 8;
+
+    private final File file;
+    //opened on the first save
+    private FileChannel channel;
+    private byte[] entries;
+    //every page below this is known to be full
+    private int searchFrom;
+    private boolean loaded;
+    //the saved page counts, -1 if there are none
+    private int logicalPages;
+    private int allocatedPages;
+    //changes since the last save; written under this, read by saveIfDue
+    private volatile int unsaved;
+    //orders saves, so an older copy of the map is never written last
+    private final Object saveLock = new Object();
+
+    /**
+     * @param file the side file the map is saved to; it is created on the
+     *   first save
+     */
+    public FreeSpaceMap(File file) {
+        this.file = file;
+        this.entries = new byte[0];
+        this.searchFrom = 0;
+        this.loaded = false;
+        this.logicalPages = -1;
+        this.allocatedPages = -1;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the side file the free space map of a data file is saved to. */
+    public static File sideFile(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Delete the saved map of a data file that is being created from
+     * scratch, so the entries and page counts of an older file at the same
+     * path aren't loaded for it.
+     */
+    public static void discard(File dataFile) {
+        sideFile(dataFile).delete();
+    }
+
+    /** @return the recorded free slots of the page, or UNKNOWN */
+    public synchronized int freeSlots(int pageNo) {
+        load();
+        return pageNo < entries.length ? entries[pageNo] & 0xff : UNKNOWN;
+    }
+
+    /** Record that the page has freeSlots free slots. */
+    public synchronized void update(int pageNo, int freeSlots) {
+        load();
+        if (pageNo >= entries.length) {
+            int old = entries.length;
+            entries = Arrays.copyOf(entries, Math.max(pageNo + 1, 2 * old));
+            Arrays.fill(entries, old, entries.length, (byte) UNKNOWN);
+        }
+        byte entry = (byte) Math.min(freeSlots, MAX_TRACKED);
+        if (entries[pageNo] != entry) {
+            entries[pageNo] = entry;
+            unsaved++;
+        }
+        if (freeSlots > 0 && pageNo < searchFrom) {
+            searchFrom = pageNo;
+        }
+    }
+
+    /**
+     * @return the first page from from on, below numPages, that may have a
+     *   free slot (recorded as free, or unknown), or -1 if there is none
+     */
+    public synchronized int nextCandidate(int from, int numPages) {
+        return nextCandidate(from, numPages, 1);
+    }
+
+    /**
+     * @return the first page from from on, below numPages, whose recorded
+     *   free space is at least needed (or unknown), or -1 if there is none
+     */
+    public synchronized int nextCandidate(int from, int numPages, int needed) {
+        load();
+        int i = Math.max(from, searchFrom);
+        while (i < numPages && i < entries.length && entries[i] == 0) {
+            i++;
+        }
+        if (from <= searchFrom) {
+            searchFrom = i;
+        }
+        while (i < numPages && i < entries.length && (entries[i] & 0xff) < needed) {
+            i++;
+        }
+        return i < numPages ? i : -1;
+    }
+
+    /** Save the map if SAVE_INTERVAL changes were made since it was last saved. */
+    public void saveIfDue() throws IOException {
+        if (unsaved >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /** Save the page counts and all entries to the side file, if anything changed. */
+    public void save() throws IOException {
+        synchronized (saveLock) {
+            ByteBuffer buf;
+            synchronized (this) {
+                if (unsaved == 0) {
+                    return;
+                }
+                buf = ByteBuffer.allocate(HEADER_BYTES + entries.length);
+                buf.putInt(logicalPages).putInt(allocatedPages).put(entries).flip();
+                unsaved = 0;
+            }
+            //written outside the map's monitor, so updates don't wait for it
+            try {
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    ch.write(buf, buf.position());
+                }
+            } catch (ClosedChannelException e) {
+                //closed by an interrupt; saved again with the next changes
+                synchronized (this) {
+                    channel = null;
+                    unsaved++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the heap file's logical page count and the number of pages its
+     * file has room for, including preallocated ones. They are saved with
+     * the entries.
+     */
+    public synchronized void setExtent(int logicalPages, int allocatedPages) {
+        load();
+        if (logicalPages != this.logicalPages || allocatedPages != this.allocatedPages) {
+            this.logicalPages = logicalPages;
+            this.allocatedPages = allocatedPages;
+            unsaved++;
+        }
+    }
+
+    /** @return the saved logical page count, or -1 if none was saved */
+    public synchronized int savedLogicalPages() {
+        load();
+        return logicalPages;
+    }
+
+    /** @return the saved count of pages the file has room for, or -1 if none was saved */
+    public synchronized int savedAllocatedPages() {
+        load();
+        return allocatedPages;
+    }
+
+    /** Forget the entries of pages from pageNo on, such as ones saved for an older file. */
+    public synchronized void forgetFrom(int pageNo) {
+        load();
+        if (pageNo < entries.length) {
+            Arrays.fill(entries, pageNo, entries.length, (byte) UNKNOWN);
+            unsaved++;
+        }
+    }
+
+    //the side file, created on first use
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return channel;
+    }
+
+    /** Save the map and close the side file; it is opened again on the next save. */
+    public void close() throws IOException {
+        save();
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    //read the side file the first time the map is used
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists() || file.length() < HEADER_BYTES) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                byte[] saved = new byte[(int) file.length() - HEADER_BYTES];
+                logicalPages = in.readInt();
+                allocatedPages = in.readInt();
+                in.readFully(saved);
+                entries = saved;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            //the map is only a hint; start over without it
+            entries = new byte[0];
+            logicalPages = -1;
+            allocatedPages = -1;
+        }
+    }
+}
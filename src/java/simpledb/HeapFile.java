@@ -6,6 +6,11 @@ import simpledb.Permissions;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
 
 /**
@@ -18,10 +23,44 @@ import java.util.*;
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements BulkLoadable {
+
+    /**
+     * How a HeapPage lays out the fields of its slots. ROW stores each
+     * tuple's fields together; PAX stores each column of the page together,
+     * in one mini-page per field, so a scan of a few columns only touches
+     * their mini-pages.
+     *
+     * @see HeapPage#HeapPage
+     */
+    public enum Layout { ROW, PAX }
 
     TupleDesc td;
     File f;
+    final Layout layout;
+    //opened on first use and shared by all threads
+    private final PageChannel channel;
+    //which pages have room for inserts, saved next to the file
+    private final FreeSpaceMap freeSpace;
+
+    /** Default number of pages the file grows by when it runs out of room (1MB of 4KB pages). */
+    public static final int DEFAULT_EXTENT_PAGES = 256;
+    /** Pages a bulk load packs in memory before each write (256KB of 4KB pages). */
+    static final int BULK_WRITE_PAGES = 64;
+    //logical end of the file and the preallocated extent past it
+    private final HighWaterMark highWater;
+    //per-thread page buffers, so a miss doesn't allocate
+    private static final ThreadLocal<ByteBuffer> ioBuffer = new ThreadLocal<ByteBuffer>();
+    private static final ThreadLocal<byte[]> pageBytes = new ThreadLocal<byte[]>();
+
+    /** Largest region mapped at once; a buffer can't be larger than 2GB. */
+    static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private volatile boolean memoryMapped = false;
+    //read-only mappings of consecutive file regions, replaced as a whole
+    //when a segment has to be (re)mapped
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    //page size the segments were cut for
+    private int segmentPageSize;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -30,9 +69,28 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, Layout.ROW);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file whose pages use
+     * the given layout.
+     */
+    public HeapFile(File f, TupleDesc td, Layout layout) {
         //File is a standard Java class, not specific to this lab
         this.f = f;
         this.td = td;
+        this.layout = layout;
+        this.channel = new PageChannel(f);
+        this.freeSpace = new FreeSpaceMap(FreeSpaceMap.sideFile(f));
+        this.highWater = new HighWaterMark(f, channel, freeSpace);
+    }
+
+    /**
+     * Returns how the pages of this file lay out their slots.
+     */
+    public Layout getLayout() {
+        return layout;
     }
 
     /**
@@ -44,6 +102,14 @@ public class HeapFile implements DbFile {
         return this.f;
     }
 
+    /**
+     * Returns the map of free slots per page that inserts use to find a page
+     * with room.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -66,45 +132,289 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Turn memory-mapped reads on or off. When on, readPage parses pages
+     * straight out of a read-only mapping of the file, so reads are served
+     * from the OS page cache without a read call or a copy. Writes still go
+     * through the file channel and show up in the mapping; the mapping is
+     * extended when the file grows.
+     */
+    public synchronized void setMemoryMapped(boolean mmap) {
+        memoryMapped = mmap;
+        if (!mmap) {
+            //the mappings go away once they are garbage collected
+            segments = new MappedByteBuffer[0];
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws IllegalArgumentException {
         //DbFile is for files on disk. Can fetch pages and iterate through tuples. Have unique id (pid)
             //DbFiles are generally accessed through the buffer pool, rather than directly by operators.
+        if (memoryMapped) {
+            return readMappedPage(pid);
+        }
         try {
-            RandomAccessFile randFile = new RandomAccessFile(this.f, "r");
-            int offset = BufferPool.getPageSize() * pid.getPageNumber();
-            byte[] pageInBytes = new byte[BufferPool.getPageSize()];
-            randFile.seek(offset);
-            randFile.readFully(pageInBytes);
-            randFile.close();
-            return new HeapPage((HeapPageId) pid, pageInBytes);
-        } catch (FileNotFoundException e) {
+            long offset = (long) BufferPool.getPageSize() * pid.getPageNumber();
+            ByteBuffer buf = ioBuffer();
+            if (!channel.read(buf, offset)) {
+                throw new IllegalArgumentException("Page " + pid.getPageNumber() + " is past the end of the file.");
+            }
+            //HeapPage parses the bytes and doesn't keep the array
+            byte[] pageInBytes = pageBytes();
+            buf.flip();
+            buf.get(pageInBytes);
+            HeapPage page = new HeapPage((HeapPageId) pid, pageInBytes);
+            freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
+            return page;
+        } catch (NoSuchFileException e) {
             throw new IllegalArgumentException("File not legal argument.");
         } catch (IOException e) {
             throw new IllegalArgumentException();
         }
     }
 
+    private Page readMappedPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        try {
+            long offset = (long) pageSize * pid.getPageNumber();
+            long segmentBytes = (MAX_SEGMENT_BYTES / pageSize) * pageSize;
+            int idx = (int) (offset / segmentBytes);
+            int start = (int) (offset - idx * segmentBytes);
+            MappedByteBuffer[] segs = segments;
+            MappedByteBuffer seg = idx < segs.length ? segs[idx] : null;
+            if (seg == null || seg.capacity() < start + pageSize || segmentPageSize != pageSize) {
+                seg = mapSegment(idx, segmentBytes, start + pageSize);
+            }
+            ByteBuffer region = seg.duplicate();
+            region.position(start);
+            region.limit(start + pageSize);
+            HeapPage page = new HeapPage((HeapPageId) pid, region);
+            freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
+            return page;
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("File not legal argument.");
+        } catch (IOException e) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    //map segment idx up to the current end of the file; it has to hold at
+    //least needed bytes
+    private synchronized MappedByteBuffer mapSegment(int idx, long segmentBytes, int needed)
+            throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        if (segmentPageSize != pageSize) {
+            segments = new MappedByteBuffer[0];
+            segmentPageSize = pageSize;
+        }
+        MappedByteBuffer[] segs = segments;
+        if (idx < segs.length && segs[idx] != null && segs[idx].capacity() >= needed) {
+            //another thread mapped it first
+            return segs[idx];
+        }
+        long position = idx * segmentBytes;
+        MappedByteBuffer seg;
+        boolean interrupted = false;
+        while (true) {
+            FileChannel ch = channel.get(false);
+            try {
+                long size = Math.min(segmentBytes, ch.size() - position);
+                if (size < needed) {
+                    throw new IllegalArgumentException("Page is past the end of the file.");
+                }
+                seg = ch.map(FileChannel.MapMode.READ_ONLY, position, size);
+                break;
+            } catch (ClosedChannelException e) {
+                interrupted |= Thread.interrupted();
+                channel.reopen(ch);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(segs, Math.max(segs.length, idx + 1));
+        grown[idx] = seg;
+        segments = grown;
+        return seg;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         PageId pid = page.getId();
         int pgNo = pid.getPageNumber();
-        int offset = BufferPool.getPageSize() * pgNo;
-        RandomAccessFile randFile = new RandomAccessFile(this.f, "rw");
-        try{
-            randFile.seek(offset);
-            randFile.write(page.getPageData());//,0, BufferPool.getPageSize());
-            randFile.close();
-        }catch (IOException io) {
-            throw new IOException();
+        long offset = (long) BufferPool.getPageSize() * pgNo;
+        ByteBuffer buf = ioBuffer();
+        if (page instanceof HeapPage) {
+            //only the slots changed since the last write are encoded
+            ((HeapPage) page).writeTo(buf);
+        } else {
+            buf.put(page.getPageData());
         }
+        buf.flip();
+        //known before the file grows
+        int pages = numPages();
+        channel.write(buf, offset);
+        if (page instanceof HeapPage) {
+            freeSpace.update(pgNo, ((HeapPage) page).getNumEmptySlots());
+        }
+        if (pgNo >= pages) {
+            //a page written past the mark, e.g. by recovery or directly
+            highWater.written(pgNo);
+        }
+        freeSpace.saveIfDue();
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Closes the file channel, and saves and closes the free space map. The
+     * HeapFile stays usable; they are opened again on the next read or write.
+     */
+    public void close() throws IOException {
+        channel.close();
+        freeSpace.close();
+    }
+
+    //a cleared direct buffer of one page for this thread
+    private static ByteBuffer ioBuffer() {
+        ByteBuffer buf = ioBuffer.get();
+        if (buf == null || buf.capacity() != BufferPool.getPageSize()) {
+            buf = ByteBuffer.allocateDirect(BufferPool.getPageSize());
+            ioBuffer.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    private static byte[] pageBytes() {
+        byte[] b = pageBytes.get();
+        if (b == null || b.length != BufferPool.getPageSize()) {
+            b = new byte[BufferPool.getPageSize()];
+            pageBytes.set(b);
+        }
+        return b;
+    }
+
+    /**
+     * Returns the number of pages in this HeapFile. This is the logical
+     * high-water mark: pages preallocated past it don't count until an
+     * insert needs them. It is found once and then kept in memory by
+     * allocatePage, writePage and bulk loads, so pages appended to the file
+     * by other means are not seen.
      */
     public int numPages() {
-        return (int) Math.ceil(f.length() / BufferPool.getPageSize());
+        return highWater.numPages();
+    }
+
+    /**
+     * Set how many pages the file grows by when an insert needs a page past
+     * its end. The new pages are written as zeros (empty pages) right away,
+     * so later page writes don't have to extend the file.
+     */
+    public void setExtentPages(int pages) {
+        highWater.setExtentPages(pages);
+    }
+
+    public int getExtentPages() {
+        return highWater.getExtentPages();
+    }
+
+    /**
+     * Adds a page at the high-water mark and returns its number. If the
+     * file has no preallocated page left, it is first extended by
+     * extentPages zero pages. The new page is empty; callers fill it through
+     * the BufferPool.
+     */
+    int allocatePage() throws IOException {
+        return highWater.allocatePage();
+    }
+
+    /**
+     * Appends tuples to the end of the file without going through
+     * insertTuple and the BufferPool: they are packed into full pages in
+     * memory and written past the high-water mark BULK_WRITE_PAGES pages at
+     * a time. The transaction takes an exclusive lock on the table, and a
+     * single BULK_LOAD log record is written before the first page instead
+     * of an update record per page. The pages are forced to disk before
+     * this returns, so committing only needs the commit record; if the
+     * transaction aborts, the pages are emptied again.
+     *
+     * @return the number of tuples loaded
+     * @throws DbException if a tuple doesn't match this file's TupleDesc
+     * @see LogFile#logBulkLoad
+     */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().lockTable(tid, getId(), Permissions.READ_WRITE);
+        int pageSize = BufferPool.getPageSize();
+        int first = numPages();
+        Database.getLogFile().logBulkLoad(tid, getId(), first);
+        Database.getBufferPool().noteBulkLoad(tid, getId(), first);
+
+        HeapPageBuilder page = new HeapPageBuilder(td, pageSize, layout);
+        ByteBuffer batch = ByteBuffer.allocate(BULK_WRITE_PAGES * pageSize);
+        //first page of the batch being packed
+        int batchStart = first;
+        int loaded = 0;
+        while (tuples.hasNext()) {
+            Tuple t = tuples.next();
+            if (t.getTupleDesc() != td && !td.equals(t.getTupleDesc())) {
+                throw new DbException("The tupleDesc's dont match.");
+            }
+            page.add(t);
+            loaded++;
+            if (page.isFull()) {
+                batch.put(page.getPageData());
+                page.reset();
+                if (!batch.hasRemaining()) {
+                    batchStart = writeBatch(batch, batchStart);
+                }
+            }
+        }
+        if (page.size() > 0) {
+            batch.put(page.getPageData());
+        }
+        int end = writeBatch(batch, batchStart);
+        if (page.size() > 0) {
+            freeSpace.update(end - 1, page.getNumSlots() - page.size());
+        }
+        if (end == first) {
+            return loaded;
+        }
+        channel.force();
+        highWater.extendTo(end);
+        freeSpace.save();
+        return loaded;
+    }
+
+    //write the packed pages starting at page pageNo, all recorded as full,
+    //and return the page after them
+    private int writeBatch(ByteBuffer batch, int pageNo) throws IOException {
+        batch.flip();
+        int pages = batch.remaining() / BufferPool.getPageSize();
+        channel.write(batch, (long) BufferPool.getPageSize() * pageNo);
+        batch.clear();
+        for (int i = 0; i < pages; i++) {
+            freeSpace.update(pageNo + i, 0);
+        }
+        return pageNo + pages;
+    }
+
+    /**
+     * Undo a bulk load that appended pages from firstPage on: the pages are
+     * overwritten with zeros (empty pages) and dropped from the BufferPool,
+     * and the high-water mark goes back to firstPage. Called when the
+     * loading transaction aborts, and by recovery for loads that never
+     * committed.
+     */
+    public void undoBulkLoad(int firstPage) throws IOException {
+        int end = highWater.truncate(firstPage);
+        for (int i = firstPage; i < end; i++) {
+            Database.getBufferPool().discardPage(new HeapPageId(getId(), i));
+        }
     }
 
     // see DbFile.java for javadocs
@@ -114,10 +424,13 @@ public class HeapFile implements DbFile {
         if(!this.td.equals(t.getTupleDesc())){
             throw new DbException("The tupleDesc's dont match.");
         }
+        if (Database.getBufferPool().isRowLocking(getId())) {
+            return insertTupleRowLocked(tid, t);
+        }
         ArrayList<Page> pages = new ArrayList<Page>();
-        //search all the pages on this HeapFile for an empty slot
-            //must search ALL pages on the HeapFile BEFORE making a new page
-        for(int i = 0; i < this.numPages(); i++){
+        //only visit the pages the free space map says may have an empty slot
+            //must search ALL of them BEFORE making a new page
+        for(int i = freeSpace.nextCandidate(0, numPages()); i >= 0; i = freeSpace.nextCandidate(i + 1, numPages())){
             //make a HeapPageId for each page (i)
             HeapPageId pid = new HeapPageId(getId(), i);
             //use this pid to get that page from BP
@@ -133,31 +446,61 @@ public class HeapFile implements DbFile {
                 pages.add(hPage);
                 return pages;
             }
+            //the map was stale
+            freeSpace.update(i, 0);
             //TODO  - called getPage() above, now need to release
             if (Database.getBufferPool().holdsLock(tid, pid)) {
                 Database.getBufferPool().releasePage(tid, pid);
             }
         }
 
-        //now we've searched all pages and found zero empty slots, make a new page
-        HeapPageId pid = new HeapPageId(getId(), numPages());
-        //use HeapPages's createEmptyPageData() to make an empty page
-        HeapPage pg2 = new HeapPage(pid, HeapPage.createEmptyPageData());
-        //writePage(hPage);
-       // HeapPage pg2 = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        //now we've searched all pages and found zero empty slots, add a page
+        //at the high-water mark; it already exists on disk as zeros, and is
+        //only written when the BufferPool flushes it
+        HeapPageId pid = new HeapPageId(getId(), allocatePage());
+        HeapPage pg2 = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         //insert the tuple into that page
         pg2.insertTuple(t);
-        writePage(pg2);
+        //dirty right away so it can't be evicted as a clean page
+        pg2.markDirty(true, tid);
         //add the page to the arrayList
         pages.add(pg2);
         return pages;
     }
 
+    //row-locked tables: pages are only intention locked, so other writers
+    //can use them too, and the new row is locked instead
+    private ArrayList<Page> insertTupleRowLocked(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> pages = new ArrayList<Page>();
+        int i = freeSpace.nextCandidate(0, numPages());
+        while(true){
+            if(i < 0){
+                //every page is full or its free slots are still locked
+                i = allocatePage();
+            }
+            HeapPageId pid = new HeapPageId(getId(), i);
+            HeapPage hPage = (HeapPage) Database.getBufferPool().getRowPage(tid, pid, Permissions.READ_WRITE);
+            if(hPage.insertTuple(t, tid)){
+                pages.add(hPage);
+                return pages;
+            }
+            i = freeSpace.nextCandidate(i + 1, numPages());
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         ArrayList<Page> pages = new ArrayList<Page>();
-        if(t.getRecordId().getPageId().getTableId() == getId()){
+        if(t.getRecordId().getPageId().getTableId() == getId()
+                && Database.getBufferPool().isRowLocking(getId())){
+            //lock just the row, other writers may still use the page
+            Database.getBufferPool().lockRow(tid, t.getRecordId(), Permissions.READ_WRITE);
+            HeapPage hPage = (HeapPage) Database.getBufferPool().getRowPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+            hPage.deleteTuple(t, tid);
+            pages.add(hPage);
+        } else if(t.getRecordId().getPageId().getTableId() == getId()){
             HeapPage hPage = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
             hPage.deleteTuple(t);
             pages.add(hPage);
@@ -174,7 +517,29 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of the file that only decodes the
+     * given fields: its tuples hold those fields, in that order, as
+     * described by {@link #projectTupleDesc}.
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields) {
+        return new HeapFileIterator(this, tid, fields);
+    }
+
+    /**
+     * Returns the TupleDesc of the given fields of this file, in that order.
+     */
+    public TupleDesc projectTupleDesc(int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
+        }
+        return new TupleDesc(types, names);
     }
 
     private class HeapFileIterator implements DbFileIterator {
@@ -185,10 +550,22 @@ public class HeapFile implements DbFile {
         //when reading a page we start at page 0...
         int currentPage;
         boolean opened = false;
+        //read-ahead state: the page read last, and the last page already
+        //handed to the BufferPool for reading ahead
+        int lastPage = -1;
+        int readAheadTo = -1;
+        //frames a scan of a large file recycles, null for small files
+        BufferPool.ScanRing ring;
 
-        private HeapFileIterator(HeapFile f, TransactionId tid){
+        //the fields decoded and their TupleDesc, null for whole tuples
+        final int[] fields;
+        final TupleDesc projected;
+
+        private HeapFileIterator(HeapFile f, TransactionId tid, int[] fields){
             this.f = f;
             this.tid = tid;
+            this.fields = fields;
+            this.projected = fields == null ? null : f.projectTupleDesc(fields);
         }
 
         public void open() throws simpledb.DbException, simpledb.TransactionAbortedException {
@@ -197,12 +574,60 @@ public class HeapFile implements DbFile {
                 //iterate over a page
                     //to iterate over a page we have to get the pageId
             currentPage = 0;
-            HeapPageId hpid = new HeapPageId(f.getId(), currentPage);
-            HeapPage hPage = (HeapPage) Database.getBufferPool().getPage(tid, hpid , p);
-            tplIterator = hPage.iterator();
+            ring = Database.getBufferPool().scanRing(numPages());
+            tplIterator = pageTuples(currentPage);
             opened = true;
         }
 
+        //tuples of one page; row-locked tables are read without page locks
+        //and show the committed version of rows others are changing
+        private Iterator<Tuple> pageTuples(int pageNo) throws DbException, TransactionAbortedException {
+            readAhead(pageNo);
+            HeapPageId hpid = new HeapPageId(f.getId(), pageNo);
+            if (Database.getBufferPool().isRowLocking(f.getId())) {
+                HeapPage hPage = (HeapPage) Database.getBufferPool().getRowPage(tid, hpid, p);
+                return fields == null ? hPage.iterator(tid) : project(hPage.iterator(tid));
+            }
+            HeapPage hPage = (HeapPage) Database.getBufferPool().getPage(tid, hpid , p, ring);
+            return fields == null ? hPage.iterator() : hPage.iterator(fields, projected);
+        }
+
+        //the projected fields of whole tuples
+        private Iterator<Tuple> project(Iterator<Tuple> tuples) {
+            ArrayList<Tuple> out = new ArrayList<Tuple>();
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                Tuple pt = new Tuple(projected);
+                pt.setRecordId(t.getRecordId());
+                for (int i = 0; i < fields.length; i++) {
+                    pt.setField(i, t.getField(fields[i]));
+                }
+                out.add(pt);
+            }
+            return out.iterator();
+        }
+
+        //once two pages in a row were read in order, keep the next pages up
+        //to the BufferPool's read-ahead depth loading in the background
+        private void readAhead(int pageNo) {
+            boolean sequential = pageNo == lastPage + 1 && lastPage >= 0;
+            lastPage = pageNo;
+            int depth = Database.getBufferPool().getReadAheadDepth();
+            if (ring != null) {
+                //pages read ahead must not push the current one out of the ring
+                depth = Math.min(depth, ring.capacity() - 1);
+            }
+            if (!sequential || depth <= 0) {
+                readAheadTo = pageNo;
+                return;
+            }
+            int last = Math.min(pageNo + depth, numPages() - 1);
+            for (int i = Math.max(readAheadTo, pageNo) + 1; i <= last; i++) {
+                Database.getBufferPool().prefetchPage(new HeapPageId(f.getId(), i), ring);
+            }
+            readAheadTo = Math.max(readAheadTo, last);
+        }
+
         public boolean hasNext() throws simpledb.DbException, simpledb.TransactionAbortedException {
             //check to see if there are more tuples in a given DbFile
                 //DbFileIterator has shell method for hasNext() and the comments say to return false
@@ -214,9 +639,7 @@ public class HeapFile implements DbFile {
             currentPage++;
 
             while (currentPage < numPages()) {
-                HeapPage hpg = (HeapPage) Database.getBufferPool().getPage(
-                        tid, new HeapPageId(getId(), currentPage), p);
-                tplIterator = hpg.iterator();
+                tplIterator = pageTuples(currentPage);
                 if (tplIterator.hasNext()) return true;
                 else currentPage++;
             }
@@ -251,6 +674,9 @@ public class HeapFile implements DbFile {
             tplIterator = null;
             currentPage = 0;
             opened = false;
+            lastPage = -1;
+            readAheadTo = -1;
+            ring = null;
         }
     }
 }
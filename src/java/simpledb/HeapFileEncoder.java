@@ -1,7 +1,14 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -68,15 +75,19 @@ public class HeapFileEncoder {
 
    /** Convert the specified input text file into a binary
     * page file. <br>
-    * Assume format of the input file is (note that only integer fields are
-    * supported):<br>
-    * int,...,int\n<br>
-    * int,...,int\n<br>
+    * Assume format of the input file is:<br>
+    * field,...,field\n<br>
+    * field,...,field\n<br>
     * ...<br>
     * where each row represents a tuple.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
     * HeapFile.
+    * <p>
+    * The input is streamed: it is cut into chunks of CHUNK_BYTES at line
+    * breaks, the chunks are parsed in parallel on the common fork-join pool,
+    * and the pages are written in input order by the calling thread. Only a
+    * few chunks per worker are in memory at once, however large the input.
     *
     * @see HeapPage
     * @see HeapFile
@@ -90,137 +101,238 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator,
+              ForkJoinPool.commonPool(), CHUNK_BYTES);
+  }
+
+  /** Input bytes parsed by one task (8MB), up to the last line break. */
+  static final int CHUNK_BYTES = 8 << 20;
+
+  // the records of one chunk, serialized back to back
+  private static class Records {
+      final byte[] data;
+      final int count;
+
+      Records(byte[] data, int count) {
+          this.data = data;
+          this.count = count;
+      }
+  }
 
-      int nrecbytes = 0;
-      for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
+  static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator,
+                 ForkJoinPool pool, int chunkBytes)
+      throws IOException {
+      final Type[] types = Arrays.copyOf(typeAr, numFields);
+      final char separator = fieldSeparator;
+      HeapPageBuilder page = new HeapPageBuilder(new TupleDesc(types), npagebytes);
+      // chunks being parsed, oldest first
+      ArrayDeque<ForkJoinTask<Records>> parsing = new ArrayDeque<ForkJoinTask<Records>>();
+      int maxParsing = 2 * pool.getParallelism();
+      InputStream is = new FileInputStream(inFile);
+      FreeSpaceMap.discard(outFile);
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile), 1 << 20);
+      int npages = 0;
+      try {
+          // the unfinished last line of the previous chunk
+          byte[] carry = new byte[0];
+          boolean eof = false;
+          while (!eof || !parsing.isEmpty()) {
+              while (!eof && parsing.size() < maxParsing) {
+                  byte[] buf = Arrays.copyOf(carry, carry.length + chunkBytes);
+                  int len = carry.length;
+                  int n;
+                  while (len < buf.length && (n = is.read(buf, len, buf.length - len)) > 0)
+                      len += n;
+                  eof = len < buf.length;
+                  int end = len;
+                  if (!eof) {
+                      // cut after the last line break; a line longer than a
+                      // chunk is carried whole into the next one
+                      while (end > 0 && buf[end - 1] != '\n')
+                          end--;
+                  }
+                  carry = Arrays.copyOfRange(buf, end, len);
+                  final byte[] chunk = buf;
+                  final int chunkEnd = end;
+                  parsing.add(pool.submit(new Callable<Records>() {
+                      public Records call() throws IOException {
+                          return parseChunk(chunk, chunkEnd, types, separator);
+                      }
+                  }));
+              }
+              Records records = join(parsing.poll());
+              for (int off = 0; off < records.count; ) {
+                  off += page.addSerialized(records.data, off, records.count - off);
+                  // write out each page as soon as it is full
+                  if (page.isFull()) {
+                      os.write(page.getPageData());
+                      page.reset();
+                      npages++;
+                  }
+              }
+          }
+          // flush the last page only if it has records on it. however, if
+          // this file is empty, do flush an empty page to disk.
+          if (page.size() > 0 || npages == 0)
+              os.write(page.getPageData());
+      } finally {
+          for (ForkJoinTask<Records> task : parsing)
+              task.cancel(false);
+          is.close();
+          os.close();
+      }
+  }
+
+  private static Records join(ForkJoinTask<Records> task) throws IOException {
+      try {
+          return task.get();
+      } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException)
+              throw (IOException) e.getCause();
+          throw new RuntimeException(e.getCause());
+      }
+  }
+
+  /** Parse the lines in buf[0, len) into records laid out as HeapPage
+   * stores them. Blank lines are skipped, otherwise the rules are the
+   * ones of parseTuple.
+   */
+  static Records parseChunk(byte[] buf, int len, Type[] types, char fieldSeparator)
+      throws IOException {
+      int recBytes = 0;
+      for (Type t : types)
+          recBytes += t.getLen();
+      int lines = 1;
+      for (int i = 0; i < len; i++)
+          if (buf[i] == '\n')
+              lines++;
+      ByteBuffer out = ByteBuffer.allocate(lines * recBytes);
+      byte sep = (byte) fieldSeparator;
+      int count = 0;
+      int pos = 0;
+      while (pos < len) {
+          int eol = pos;
+          while (eol < len && buf[eol] != '\n')
+              eol++;
+          int lineEnd = eol;
+          if (lineEnd > pos && buf[lineEnd - 1] == '\r')
+              lineEnd--;
+          if (!isBlank(buf, pos, lineEnd)) {
+              int start = pos;
+              for (int f = 0; f < types.length; f++) {
+                  if (start > lineEnd)
+                      throw new IOException("Line has fewer than " + types.length + " fields: "
+                              + new String(buf, pos, lineEnd - pos));
+                  int end = start;
+                  while (end < lineEnd && buf[end] != sep)
+                      end++;
+                  int from = start;
+                  int to = end;
+                  while (from < to && (buf[from] & 0xff) <= ' ')
+                      from++;
+                  while (to > from && (buf[to - 1] & 0xff) <= ' ')
+                      to--;
+                  if (types[f] == Type.INT_TYPE) {
+                      out.putInt(parseInt(buf, from, to));
+                  } else if (isAscii(buf, from, to)) {
+                      int slen = Math.min(to - from, Type.STRING_LEN);
+                      out.putInt(slen);
+                      out.put(buf, from, slen);
+                      for (int i = slen; i < Type.STRING_LEN; i++)
+                          out.put((byte) 0);
+                  } else {
+                      // decode as the line reader would and keep the low
+                      // byte of each char, like StringField.serialize
+                      String s = new String(buf, from, to - from).trim();
+                      int slen = Math.min(s.length(), Type.STRING_LEN);
+                      out.putInt(slen);
+                      for (int i = 0; i < slen; i++)
+                          out.put((byte) s.charAt(i));
+                      for (int i = slen; i < Type.STRING_LEN; i++)
+                          out.put((byte) 0);
+                  }
+                  start = end + 1;
+              }
+              count++;
+          }
+          pos = eol + 1;
+      }
+      return new Records(out.array(), count);
+  }
+
+  private static boolean isBlank(byte[] buf, int from, int to) {
+      for (int i = from; i < to; i++)
+          if ((buf[i] & 0xff) > ' ')
+              return false;
+      return true;
+  }
+
+  private static boolean isAscii(byte[] buf, int from, int to) {
+      for (int i = from; i < to; i++)
+          if (buf[i] < 0)
+              return false;
+      return true;
+  }
+
+  // Integer.parseInt without building a String for the common case
+  private static int parseInt(byte[] buf, int from, int to) {
+      int i = from;
+      boolean negative = i < to && buf[i] == '-';
+      if (negative || i < to && buf[i] == '+')
+          i++;
+      long v = 0;
+      boolean ok = i < to && to - i <= 10;
+      for (; ok && i < to; i++) {
+          int d = buf[i] - '0';
+          ok = d >= 0 && d <= 9;
+          v = v * 10 + d;
+      }
+      v = negative ? -v : v;
+      if (ok && v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE)
+          return (int) v;
+      String s = new String(buf, from, to - from);
+      try {
+          return Integer.parseInt(s);
+      } catch (NumberFormatException e) {
+          System.out.println ("BAD LINE : " + s);
+          return 0;
+      }
+  }
+
+  /** Parse one line of a delimited text file into a tuple of the given
+   * schema. Fields are trimmed and strings longer than Type.STRING_LEN
+   * are cut off; an int field that doesn't parse is reported and stored
+   * as 0.
+   *
+   * @throws IOException if the line has fewer fields than the schema
+   */
+  static Tuple parseTuple(String line, TupleDesc td, char fieldSeparator)
+      throws IOException {
+      Tuple t = new Tuple(td);
+      int start = 0;
+      for (int i = 0; i < td.numFields(); i++) {
+          if (start > line.length())
+              throw new IOException("Line has fewer than " + td.numFields() + " fields: " + line);
+          int end = line.indexOf(fieldSeparator, start);
+          if (end < 0)
+              end = line.length();
+          String s = line.substring(start, end).trim();
+          if (td.getFieldType(i) == Type.INT_TYPE) {
+              int v = 0;
+              try {
+                  v = Integer.parseInt(s);
+              } catch (NumberFormatException e) {
+                  System.out.println ("BAD LINE : " + s);
+              }
+              t.setField(i, new IntField(v));
+          } else {
+              t.setField(i, new StringField(s, Type.STRING_LEN));
+          }
+          start = end + 1;
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+      return t;
   }
 }
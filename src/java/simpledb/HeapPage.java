@@ -17,14 +17,48 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
+    //the page as stored on disk: the header bitmap, then the slots. This is
+    //the page's contents; tuples are decoded from it when asked for
+    byte data[];
+    //decoded tuples of used slots, filled in on demand
     final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
+    //byte offset of each field within a slot
+    final int fieldOffsets[];
+    //true if the fields are stored in per-field mini-pages (HeapFile.Layout.PAX)
+    final boolean pax;
+    //the header as a bitmap, 64 slots per word: slot i is bit i % 64 of
+    //word i / 64, the same order the header bytes use
+    final long used[];
+    //slots whose tuple was set but not yet serialized into data, in the
+    //same layout as used
+    final long pending[];
+    private int numPending;
+    //set while an iterator may still read data; the next change copies it
+    private boolean dataShared;
     boolean dirty;
     TransactionId tranIdDirty;
 
+    //the before image, captured by the first change after setBeforeImage;
+    //null while the page is unchanged and the before image is the page itself
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+
+    //slots changed by transactions that have not completed yet; only used
+    //for row-locked tables, where several transactions write one page
+    private Map<Integer, RowChange> rowChanges;
+
+    //the owner of an uncommitted change to one slot and the tuple the slot
+    //held before it (null if it was empty)
+    private static class RowChange {
+        final TransactionId tid;
+        final Tuple before;
+
+        RowChange(TransactionId tid, Tuple before) {
+            this.tid = tid;
+            this.before = before;
+        }
+    }
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -38,32 +72,115 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * With the ROW layout the fields of a slot are stored together, slot
+     * after slot. With the PAX layout the slot area is split into one
+     * mini-page per field, holding that field of every slot in slot order;
+     * the header and the number of slots are the same. The layout is the
+     * one of the table's HeapFile.
+     * <p>
+     * @see HeapFile.Layout
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id);
+        //the caller may reuse its array
+        System.arraycopy(data, 0, this.data, 0, Math.min(data.length, this.data.length));
+        loadBitmap();
+        setBeforeImage();
+    }
+
+    /**
+     * Create a HeapPage from a page-sized region of a buffer, such as a
+     * memory-mapped file, copying the region without parsing it. The
+     * buffer's position and limit are not changed.
+     */
+    public HeapPage(HeapPageId id, java.nio.ByteBuffer data) throws IOException {
+        this(id);
+        java.nio.ByteBuffer region = data.duplicate();
+        region.get(this.data, 0, Math.min(region.remaining(), this.data.length));
+        loadBitmap();
+        setBeforeImage();
+    }
+
+    private HeapPage(HeapPageId id) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.data = new byte[BufferPool.getPageSize()];
+        this.tuples = new Tuple[numSlots];
+        this.used = new long[(numSlots + 63) / 64];
+        this.pending = new long[used.length];
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++) {
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
         }
-        dis.close();
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.pax = file instanceof HeapFile && ((HeapFile) file).getLayout() == HeapFile.Layout.PAX;
+    }
 
-        setBeforeImage();
+    //read the header bytes into the bitmap, ignoring bits past the last slot
+    private void loadBitmap() {
+        for (int b = 0; b < headerSize; b++) {
+            used[b / 8] |= (data[b] & 0xffL) << (8 * (b % 8));
+        }
+        if (numSlots % 64 != 0) {
+            used[used.length - 1] &= (1L << (numSlots % 64)) - 1;
+        }
+    }
+
+    //first slot from from on whose bit in bits is set, or numSlots
+    private int nextSet(long[] bits, int from) {
+        if (from >= numSlots) {
+            return numSlots;
+        }
+        int w = from >>> 6;
+        long word = bits[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == bits.length) {
+                return numSlots;
+            }
+            word = bits[w];
+        }
+        return Math.min(numSlots, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    //first empty slot from from on, or numSlots
+    private int nextFree(int from) {
+        if (from >= numSlots) {
+            return numSlots;
+        }
+        int w = from >>> 6;
+        long word = ~used[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == used.length) {
+                return numSlots;
+            }
+            word = ~used[w];
+        }
+        return Math.min(numSlots, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    //writes into the page array from a position on
+    private static class SlotOutputStream extends OutputStream {
+        final byte[] buf;
+        int pos;
+
+        SlotOutputStream(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        public void write(int b) {
+            buf[pos++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -83,14 +200,9 @@ public class HeapPage implements Page {
     
     /** Return a view of this page before it was modified
         -- used by recovery */
-    public HeapPage getBeforeImage(){
+    public synchronized HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid, oldData != null ? oldData : getPageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -99,11 +211,13 @@ public class HeapPage implements Page {
         return null;
     }
     
-    public void setBeforeImage() {
-        synchronized(oldDataLock)
-        {
-        oldData = getPageData().clone();
-        }
+    /**
+     * Make the current contents the before image. Nothing is copied: the
+     * before image is only captured when the page next changes, and pages
+     * that are never changed again don't keep a second copy.
+     */
+    public synchronized void setBeforeImage() {
+        oldData = null;
     }
 
     /**
@@ -113,105 +227,173 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    //offset of a field of a slot in the page
+    private int fieldOffset(int slot, int fieldNo) {
+        if (pax) {
+            return headerSize + numSlots * fieldOffsets[fieldNo] + slot * td.getFieldType(fieldNo).getLen();
         }
-        // read fields in the tuple
+        return headerSize + slot * td.getSize() + fieldOffsets[fieldNo];
+    }
+
+    //decode the tuple in a used slot of a page image
+    private Tuple decodeTuple(byte[] d, int slot) {
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+        t.setRecordId(new RecordId(pid, slot));
+        for (int j = 0; j < td.numFields(); j++) {
+            t.setField(j, decodeField(d, fieldOffset(slot, j), td.getFieldType(j)));
+        }
+        return t;
+    }
+
+    //decode only the given fields of a used slot, as a tuple of projected
+    private Tuple decodeFields(byte[] d, int slot, int[] fields, TupleDesc projected) {
+        Tuple t = new Tuple(projected);
+        t.setRecordId(new RecordId(pid, slot));
+        for (int i = 0; i < fields.length; i++) {
+            t.setField(i, decodeField(d, fieldOffset(slot, fields[i]), td.getFieldType(fields[i])));
+        }
+        return t;
+    }
+
+    private static Field decodeField(byte[] d, int off, Type type) {
+        if (type == Type.INT_TYPE) {
+            return new IntField((d[off] << 24) | ((d[off + 1] & 0xff) << 16)
+                    | ((d[off + 2] & 0xff) << 8) | (d[off + 3] & 0xff));
+        }
         try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
+            return type.parse(new DataInputStream(new ByteArrayInputStream(d, off, type.getLen())));
         } catch (java.text.ParseException e) {
             e.printStackTrace();
             throw new NoSuchElementException("parsing error!");
         }
+    }
+
+    /**
+     * Returns the tuple in a slot, decoding it the first time it is asked
+     * for, or null if the slot is empty.
+     */
+    public synchronized Tuple getTuple(int slot) {
+        if (!isSlotUsed(slot)) {
+            return null;
+        }
+        Tuple t = tuples[slot];
+        if (t == null) {
+            t = decodeTuple(data, slot);
+            tuples[slot] = t;
+        }
         return t;
     }
 
     /**
-     * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
-     * <p>
-     * The invariant here is that it should be possible to pass the byte
-     * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
-     *
-     * @see #HeapPage
-     * @return A byte array correspond to the bytes of this page.
+     * Returns one field of the tuple in a slot, decoded straight from the
+     * page bytes without building the tuple, or null if the slot is empty.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+    public synchronized Field getField(int slot, int fieldNo) {
+        if (!isSlotUsed(slot)) {
+            return null;
+        }
+        if (tuples[slot] != null) {
+            return tuples[slot].getField(fieldNo);
+        }
+        return decodeField(data, fieldOffset(slot, fieldNo), td.getFieldType(fieldNo));
+    }
 
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+    //called before each change to the contents; the first change after
+    //setBeforeImage keeps the current bytes as the before image, and the
+    //write that follows copies them
+    private void beforeChange() {
+        if (oldData == null) {
+            encodePending();
+            oldData = data;
+            dataShared = true;
         }
+        beforeWrite();
+    }
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+    //copy the page bytes first if an iterator or the before image may still
+    //be reading them
+    private void beforeWrite() {
+        if (dataShared) {
+            data = data.clone();
+            dataShared = false;
+        }
+    }
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                continue;
-            }
+    //put t in the slot and mark it used; its bytes are written the next
+    //time the page bytes are needed
+    private void writeSlot(int slot, Tuple t) {
+        //an iterator's snapshot must not see the new tuple through the cache
+        beforeChange();
+        markSlotUsed(slot, true);
+        tuples[slot] = t;
+        if ((pending[slot >>> 6] & 1L << slot) == 0) {
+            pending[slot >>> 6] |= 1L << slot;
+            numPending++;
+        }
+    }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    //empty the slot; empty slots are all zeros on disk
+    private void clearSlot(int slot) {
+        beforeChange();
+        markSlotUsed(slot, false);
+        for (int j = 0; j < td.numFields(); j++) {
+            int off = fieldOffset(slot, j);
+            Arrays.fill(data, off, off + td.getFieldType(j).getLen(), (byte) 0);
         }
+        tuples[slot] = null;
+        if ((pending[slot >>> 6] & 1L << slot) != 0) {
+            pending[slot >>> 6] &= ~(1L << slot);
+            numPending--;
+        }
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+    //serialize the tuples of the slots changed since the bytes were last
+    //needed, so only those slots are encoded
+    private void encodePending() {
+        if (numPending == 0) {
+            return;
         }
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        beforeWrite();
+        SlotOutputStream out = new SlotOutputStream(data, 0);
+        DataOutputStream dos = new DataOutputStream(out);
+        for (int slot = nextSet(pending, 0); slot < numSlots; slot = nextSet(pending, slot + 1)) {
+            try {
+                for (int j = 0; j < td.numFields(); j++) {
+                    out.pos = fieldOffset(slot, j);
+                    tuples[slot].getField(j).serialize(dos);
+                }
+            } catch (IOException e) {
+                //this really shouldn't happen
+                e.printStackTrace();
+            }
         }
-        return baos.toByteArray();
+        Arrays.fill(pending, 0L);
+        numPending = 0;
+    }
+
+    /**
+     * Copies the bytes of this page into buf, like getPageData but without
+     * allocating an array. Used to write the page to disk.
+     */
+    public synchronized void writeTo(java.nio.ByteBuffer buf) {
+        encodePending();
+        buf.put(data);
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HeapPage constructor and
+     * have it produce an identical HeapPage object.
+     *
+     * @see #HeapPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public synchronized byte[] getPageData() {
+        encodePending();
+        return data.clone();
     }
 
     /**
@@ -235,13 +417,14 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         RecordId rid = t.getRecordId();
         int tupNo = rid.getTupleNumber();
         if(rid == null || !rid.getPageId().equals(this.pid) || !isSlotUsed(tupNo)){
             throw new DbException("The tuple is not on the page.");
         }
-        markSlotUsed(tupNo, false);
+        clearSlot(tupNo);
+        noteFreeSpace();
     }
 
     /**
@@ -251,26 +434,148 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         RecordId rid;
         int tupNo = 0;
         TupleDesc insertTtd = t.getTupleDesc();
         if(this.getNumEmptySlots() == 0 ||!this.td.equals(insertTtd)){
             throw new DbException("There are no available slots or the tupleDesc doesnt match.");
         }
-        //numSlots instead of tuples.length???
-        for(int i = 0; i < numSlots; i++){
-            if(!isSlotUsed(i)){
-                tupNo = i;
-            }
-        }
-        //these lines need to be outside the for-loop because we only want the i values
-        //that is not used, if these lines are inside the for-loop it will continually
-        //rewrite.
+        tupNo = nextFree(0);
         rid = new RecordId(this.pid, tupNo);
         t.setRecordId(rid);
-        markSlotUsed(tupNo, true);
-        tuples[tupNo] = t;
+        writeSlot(tupNo, t);
+        noteFreeSpace();
+    }
+
+    /**
+     * Adds the tuple on behalf of tid to a free slot that no other
+     * transaction holds a row lock on, and locks the new row exclusively.
+     * Used for row-locked tables: the page's monitor is the short latch that
+     * protects the slot array while several transactions write the page.
+     *
+     * @return false if the page has no free slot that can be locked
+     * @throws DbException if the tupledesc is mismatched
+     */
+    public synchronized boolean insertTuple(Tuple t, TransactionId tid) throws DbException {
+        if(!this.td.equals(t.getTupleDesc())){
+            throw new DbException("The tupleDesc doesnt match.");
+        }
+        for(int i = nextFree(0); i < numSlots; i = nextFree(i + 1)){
+            //a freed slot stays locked until its deleter completes, so an
+            //abort can put the old tuple back
+            if(Database.getBufferPool().tryLockRow(tid, new RecordId(pid, i))){
+                recordRowChange(i, tid);
+                t.setRecordId(new RecordId(pid, i));
+                writeSlot(i, t);
+                noteFreeSpace();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the tuple on behalf of tid, remembering the old tuple so the
+     * delete can be rolled back without touching other transactions' rows.
+     * The caller must hold an exclusive row lock on the tuple.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t, TransactionId tid) throws DbException {
+        RecordId rid = t.getRecordId();
+        if(rid == null || !rid.getPageId().equals(this.pid) || !isSlotUsed(rid.getTupleNumber())){
+            throw new DbException("The tuple is not on the page.");
+        }
+        recordRowChange(rid.getTupleNumber(), tid);
+        clearSlot(rid.getTupleNumber());
+        noteFreeSpace();
+    }
+
+    //keep the free space map of this page's file in step
+    private void noteFreeSpace() {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).getFreeSpaceMap().update(pid.getPageNumber(), getNumEmptySlots());
+        }
+    }
+
+    //remember the slot's committed contents the first time tid changes it
+    private void recordRowChange(int slot, TransactionId tid) {
+        if (rowChanges == null) {
+            rowChanges = new HashMap<Integer, RowChange>();
+        }
+        if (!rowChanges.containsKey(slot)) {
+            rowChanges.put(slot, new RowChange(tid, getTuple(slot)));
+        }
+    }
+
+    //put back the slot's contents from before an uncommitted change
+    private void undoRowChange(int slot, RowChange change) {
+        if (change.before == null) {
+            clearSlot(slot);
+        } else {
+            writeSlot(slot, change.before);
+        }
+    }
+
+    /** @return true if tid has row changes on this page that have not completed */
+    public synchronized boolean hasRowChanges(TransactionId tid) {
+        if (rowChanges != null) {
+            for (RowChange c : rowChanges.values()) {
+                if (Objects.equals(c.tid, tid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Commits tid's row changes on this page: the before image becomes this
+     * page with only the changes of other, still running transactions undone.
+     *
+     * @return the new before image, which is tid's after image for the log
+     */
+    public synchronized HeapPage commitRows(TransactionId tid) {
+        HeapPage committed;
+        try {
+            committed = new HeapPage(pid, getPageData());
+        } catch (IOException e) {
+            //should never happen -- we just serialized it
+            throw new RuntimeException(e);
+        }
+        if (rowChanges == null) {
+            return committed;
+        }
+        for (Iterator<Map.Entry<Integer, RowChange>> it = rowChanges.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, RowChange> e = it.next();
+            if (Objects.equals(e.getValue().tid, tid)) {
+                it.remove();
+            } else {
+                committed.undoRowChange(e.getKey(), e.getValue());
+            }
+        }
+        //with no other transaction's changes left, the page is its own
+        //before image again
+        oldData = rowChanges.isEmpty() ? null : committed.getPageData();
+        return committed;
+    }
+
+    /** Undoes tid's row changes on this page, leaving other transactions' rows alone. */
+    public synchronized void rollbackRows(TransactionId tid) {
+        if (rowChanges == null) {
+            return;
+        }
+        for (Iterator<Map.Entry<Integer, RowChange>> it = rowChanges.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, RowChange> e = it.next();
+            if (Objects.equals(e.getValue().tid, tid)) {
+                undoRowChange(e.getKey(), e.getValue());
+                it.remove();
+            }
+        }
+        noteFreeSpace();
     }
 
     /**
@@ -299,37 +604,28 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int counter = 0;
-        for(int i = 0; i < numSlots; i++){
-            if(!isSlotUsed(i)){
-                counter++;
-            }
+        int usedSlots = 0;
+        for (long word : used) {
+            usedSlots += Long.bitCount(word);
         }
-        return counter;
+        return numSlots - usedSlots;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        int byts = i / 8;
-        int bits = i % 8;
-        byte valByte = header[byts];
-        int valInt = valByte >> (8 - (bits + 1)) & 0x0001;
-        if((valByte >> (bits) & 0x0001) == 1){
-            return true;
-        }
-        return false;
+        return (used[i >>> 6] >>> i & 1L) != 0;
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        int byts = i / 8;
-        int bits = i % 8;
         if(isSlotUsed(i) ^ value){
-            header[byts] ^= (1 << bits);
+            beforeWrite();
+            used[i >>> 6] ^= 1L << i;
+            data[i / 8] ^= (1 << (i % 8));
         }
     }
 
@@ -337,14 +633,95 @@ public class HeapPage implements Page {
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an
      * UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator sees the page as it was when it was created, and decodes
+     * each tuple only when next() reaches it.
+     */
+    public synchronized Iterator<Tuple> iterator() {
+        encodePending();
+        //later changes copy the bytes instead of changing them under us
+        dataShared = true;
+        return new TupleIterator(data, used.clone(), null, null);
+    }
+
+    /**
+     * @return an iterator like iterator() whose tuples only hold the given
+     * fields, in that order, as described by projected. The other fields
+     * are never decoded, and with the PAX layout never touched.
+     */
+    public synchronized Iterator<Tuple> iterator(int[] fields, TupleDesc projected) {
+        encodePending();
+        dataShared = true;
+        return new TupleIterator(data, used.clone(), fields, projected);
+    }
+
+    private class TupleIterator implements Iterator<Tuple> {
+        final byte[] snapshot;
+        final long[] snapshotUsed;
+        //the fields decoded, null for whole tuples
+        final int[] fields;
+        final TupleDesc projected;
+        //the next used slot, numSlots at the end
+        int slot;
+
+        TupleIterator(byte[] snapshot, long[] snapshotUsed, int[] fields, TupleDesc projected) {
+            this.snapshot = snapshot;
+            this.snapshotUsed = snapshotUsed;
+            this.fields = fields;
+            this.projected = projected;
+            this.slot = nextSet(snapshotUsed, 0);
+        }
+
+        public boolean hasNext() {
+            return slot < numSlots;
+        }
+
+        public Tuple next() {
+            if (slot >= numSlots) {
+                throw new NoSuchElementException();
+            }
+            int i = slot;
+            slot = nextSet(snapshotUsed, i + 1);
+            if (fields != null) {
+                return decodeFields(snapshot, i, fields, projected);
+            }
+            Tuple t;
+            synchronized (HeapPage.this) {
+                //the cache only holds tuples of the current bytes
+                if (data == snapshot && tuples[i] != null) {
+                    return tuples[i];
+                }
+                t = decodeTuple(snapshot, i);
+                if (data == snapshot) {
+                    tuples[i] = t;
+                }
+            }
+            return t;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @return an iterator over the tuples tid can see on a row-locked page:
+     * its own changes, and the committed version of rows other transactions
+     * are still changing.
      */
-    public Iterator<Tuple> iterator() {
+    public synchronized Iterator<Tuple> iterator(TransactionId tid) {
+        if (rowChanges == null || rowChanges.isEmpty()) {
+            return iterator();
+        }
         ArrayList<Tuple> tpls = new ArrayList<Tuple>();
-        //worst case scenario, a page is full and we have to search the entire number of slots
         for(int i = 0; i < numSlots; i++){
-            //skip over empty slots and only add to tpls if slot is used.
-            if(isSlotUsed(i)){
-                tpls.add(tuples[i]);
+            RowChange c = rowChanges.get(i);
+            if(c != null && !Objects.equals(c.tid, tid)){
+                if(c.before != null){
+                    tpls.add(c.before);
+                }
+            } else if(isSlotUsed(i)){
+                tpls.add(getTuple(i));
             }
         }
         return tpls.iterator();
@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * HeapPageBuilder packs tuples into the bytes of one HeapPage without
+ * building a HeapPage, for loaders that write whole pages at once. The
+ * layout is the one described in the HeapPage constructor: a header bitmap
+ * of used slots followed by the slots, with the tuples in the first slots,
+ * in either HeapFile.Layout.
+ *
+ * @see HeapPage
+ * @see HeapFile#bulkLoad
+ */
+public class HeapPageBuilder {
+
+    private final TupleDesc td;
+    private final boolean pax;
+    //byte offset of each field within a row, and of its mini-page for PAX
+    private final int[] fieldOffsets;
+    private final int numSlots;
+    private final int headerBytes;
+    private final byte[] page;
+    private final SlotOutputStream slots;
+    private final DataOutputStream out;
+    private int count;
+
+    /**
+     * @param td the schema of the tuples
+     * @param pageSize the size of the pages built, in bytes
+     */
+    public HeapPageBuilder(TupleDesc td, int pageSize) {
+        this(td, pageSize, HeapFile.Layout.ROW);
+    }
+
+    /**
+     * @param td the schema of the tuples
+     * @param pageSize the size of the pages built, in bytes
+     * @param layout how the pages lay out their slots
+     */
+    public HeapPageBuilder(TupleDesc td, int pageSize, HeapFile.Layout layout) {
+        this.td = td;
+        this.pax = layout == HeapFile.Layout.PAX;
+        this.numSlots = (pageSize * 8) / (td.getSize() * 8 + 1);
+        this.headerBytes = (numSlots + 7) / 8;
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++) {
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+        }
+        this.page = new byte[pageSize];
+        this.slots = new SlotOutputStream();
+        this.out = new DataOutputStream(slots);
+        reset();
+    }
+
+    //writes the tuple bytes into the page array
+    private class SlotOutputStream extends OutputStream {
+        int pos;
+
+        public void write(int b) {
+            page[pos++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, page, pos, len);
+            pos += len;
+        }
+    }
+
+    /**
+     * Add a tuple to the next free slot.
+     *
+     * @return false if the page is already full; the tuple is not added
+     */
+    public boolean add(Tuple t) throws IOException {
+        if (count == numSlots) {
+            return false;
+        }
+        for (int i = 0; i < td.numFields(); i++) {
+            if (pax) {
+                slots.pos = paxOffset(count, i);
+            }
+            t.getField(i).serialize(out);
+        }
+        page[count / 8] |= (byte) (1 << (count % 8));
+        count++;
+        return true;
+    }
+
+    /**
+     * Add records that are already serialized, back to back, the way the
+     * slots store them, starting at record offset of records.
+     *
+     * @return how many of the count records fit on the page and were added
+     */
+    public int addSerialized(byte[] records, int offset, int count) {
+        int n = Math.min(count, numSlots - this.count);
+        int recBytes = td.getSize();
+        if (pax) {
+            //scatter each record's fields into the mini-pages
+            for (int r = 0; r < n; r++) {
+                int rec = (offset + r) * recBytes;
+                for (int j = 0; j < fieldOffsets.length; j++) {
+                    System.arraycopy(records, rec + fieldOffsets[j], page, paxOffset(this.count + r, j),
+                            td.getFieldType(j).getLen());
+                }
+            }
+        } else {
+            System.arraycopy(records, offset * recBytes, page, slots.pos, n * recBytes);
+            slots.pos += n * recBytes;
+        }
+        for (int i = this.count; i < this.count + n; i++) {
+            page[i / 8] |= (byte) (1 << (i % 8));
+        }
+        this.count += n;
+        return n;
+    }
+
+    //offset of a field of a slot in a PAX page
+    private int paxOffset(int slot, int fieldNo) {
+        return headerBytes + numSlots * fieldOffsets[fieldNo] + slot * td.getFieldType(fieldNo).getLen();
+    }
+
+    public boolean isFull() {
+        return count == numSlots;
+    }
+
+    /** @return the number of tuples on the page */
+    public int size() {
+        return count;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Returns the page bytes built so far; unused slots are zeros. The array
+     * is reused after reset, so callers copy it out first.
+     */
+    public byte[] getPageData() {
+        return page;
+    }
+
+    /** Start over with an empty page. */
+    public void reset() {
+        Arrays.fill(page, (byte) 0);
+        slots.pos = headerBytes;
+        count = 0;
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The logical end of a file of pages, and the preallocated extent past it.
+ * New pages are handed out at the high-water mark; when the file has no
+ * preallocated page left it is extended by extentPages zero (empty) pages
+ * at once, so later page writes don't have to grow the file. Both ends are
+ * kept in the file's FreeSpaceMap, and in memory once found, so numPages()
+ * does no I/O.
+ *
+ * @see HeapFile
+ * @see SlottedHeapFile
+ */
+class HighWaterMark {
+
+    private final File f;
+    private final PageChannel channel;
+    private final FreeSpaceMap freeSpace;
+    private volatile int extentPages = HeapFile.DEFAULT_EXTENT_PAGES;
+    //logical end of the file, -1 until first needed; the file may be longer
+    //because of preallocated pages past it
+    private volatile int highWater = -1;
+    //length of the file, preallocated pages included
+    private volatile long knownLength = -1;
+
+    HighWaterMark(File f, PageChannel channel, FreeSpaceMap freeSpace) {
+        this.f = f;
+        this.channel = channel;
+        this.freeSpace = freeSpace;
+    }
+
+    void setExtentPages(int pages) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("Extent must be at least one page.");
+        }
+        this.extentPages = pages;
+    }
+
+    int getExtentPages() {
+        return extentPages;
+    }
+
+    /**
+     * Returns the number of pages in use, found the first time it is needed
+     * and then kept up to date by the methods below.
+     */
+    int numPages() {
+        int pages = highWater;
+        return pages >= 0 ? pages : load();
+    }
+
+    private synchronized int load() {
+        if (highWater >= 0) {
+            return highWater;
+        }
+        long len = f.length();
+        int pageSize = BufferPool.getPageSize();
+        int physical = (int) (len / pageSize);
+        //trust the saved high-water mark only if the file still has the
+        //length we left it with, and nothing was written past the mark:
+        //the file may have been replaced by another one of the same length
+        int logical = freeSpace.savedLogicalPages();
+        boolean trusted = false;
+        if (logical >= 0 && logical <= physical && freeSpace.savedAllocatedPages() == physical) {
+            try {
+                trusted = channel.allZero((long) logical * pageSize, (long) physical * pageSize);
+            } catch (IOException e) {
+                //count every page then
+            }
+        }
+        if (!trusted) {
+            logical = physical;
+            freeSpace.forgetFrom(physical);
+        }
+        knownLength = len;
+        highWater = logical;
+        return logical;
+    }
+
+    /**
+     * Adds a page at the high-water mark and returns its number, first
+     * extending the file by extentPages zero pages if it has no
+     * preallocated page left.
+     */
+    synchronized int allocatePage() throws IOException {
+        int pageNo = numPages();
+        int pageSize = BufferPool.getPageSize();
+        if ((long) (pageNo + 1) * pageSize > knownLength) {
+            long end = (long) (pageNo + extentPages) * pageSize;
+            channel.zero(knownLength, end);
+            knownLength = end;
+        }
+        highWater = pageNo + 1;
+        freeSpace.setExtent(highWater, (int) (knownLength / pageSize));
+        return pageNo;
+    }
+
+    /**
+     * Moves the mark past page pgNo, which was written at or past it, e.g.
+     * by recovery or directly rather than through allocatePage.
+     */
+    synchronized void written(int pgNo) {
+        extendTo(pgNo + 1);
+    }
+
+    /**
+     * Moves the mark to end, if it is lower, after pages were written up to
+     * there.
+     */
+    synchronized void extendTo(int end) {
+        numPages();
+        if (end > highWater) {
+            int pageSize = BufferPool.getPageSize();
+            highWater = end;
+            knownLength = Math.max(knownLength, (long) end * pageSize);
+            freeSpace.setExtent(highWater, (int) (knownLength / pageSize));
+        }
+    }
+
+    /**
+     * Empties the pages from firstPage on by writing zeros over them,
+     * forces the file and moves the mark back to firstPage. Returns the
+     * end of the file, the last emptied page plus one.
+     */
+    synchronized int truncate(int firstPage) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        numPages();
+        int end = (int) (knownLength / pageSize);
+        if (firstPage < end) {
+            channel.zero((long) firstPage * pageSize, (long) end * pageSize);
+            channel.force();
+        }
+        highWater = Math.min(highWater, firstPage);
+        freeSpace.forgetFrom(firstPage);
+        freeSpace.setExtent(highWater, end);
+        freeSpace.save();
+        return end;
+    }
+}
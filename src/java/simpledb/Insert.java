@@ -31,7 +31,7 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException {
-        this.tid = tid;
+        this.tid = t;
         this.childItr = child;
         this.tableId = tableId;
         Type[] type = new Type[]{Type.INT_TYPE};
@@ -1,178 +1,781 @@
 package simpledb;
 
-import java.lang.reflect.Array;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
 
+/**
+ * LockManager implements multi-granularity locks for the BufferPool. Before a
+ * transaction locks a page in S or X mode it takes an IS or IX intention lock
+ * on the page's table (keyed by PageId.getTableId()); a table lock in S, SIX
+ * or X mode covers the pages underneath, so no page locks are needed for
+ * them. Once a transaction holds more than escalationThreshold page locks in
+ * one table, they are escalated to a single S or X table lock if that can be
+ * granted without waiting.
+ * <p>
+ * Row-locked tables add a third level: writers take IX locks on the table
+ * and the page and an X lock on the RecordId, so transactions writing
+ * different rows of one page don't block each other.
+ * <p>
+ * Every locked table or page has a lock head holding the granted locks and
+ * a FIFO queue of waiting requests. A blocked transaction waits on the
+ * LockManager's monitor and is woken when a release lets the head of the
+ * queue through, instead of polling for the lock.
+ * <p>
+ * Deadlocks are found on the waits-for graph: a waiting transaction waits
+ * for every other transaction that holds a conflicting lock on the page, or
+ * is queued ahead of it with a conflicting request. The graph is searched for
+ * a cycle whenever a transaction blocks, and again every DEADLOCK_CHECK_MS
+ * while it stays blocked. The cheapest transaction on the cycle (fewest locks,
+ * then youngest) is chosen as the victim and its wait fails immediately with
+ * a DeadlockException.
+ * <p>
+ * Instead of waiting and detecting, a LockManager can be set to prevent
+ * deadlocks with one of the other DeadlockPolicy values. They use the
+ * TransactionId as the transaction's timestamp: a smaller id is older.
+ *
+ * @Threadsafe, all methods are synchronized on the LockManager
+ */
 public class LockManager {
 
-    //map a page to a list of tid's that have locks (shared/exclusive and granted/not) on that page
-    Map<PageId, ArrayList<LockTableEntry>> lockTable;
-    //Map<TransactionId, List<PageId>> transactions;
-    //Map<TransactionId, List<TransactionId>> toStore;
+    /** How often a blocked transaction re-runs deadlock detection. */
+    static final long DEADLOCK_CHECK_MS = 100;
 
-    //inner class to set lock fields
-    private class LockTableEntry {
-        //don't need two boolean's for isShared and isExclusive
-        boolean isExclusive;
-        TransactionId tid;
+    /** Page locks a transaction may hold in one table before they are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** What to do when a lock request conflicts with other transactions. */
+    public enum DeadlockPolicy {
+        /** Wait, and abort a victim once a waits-for cycle shows up. */
+        DETECT,
+        /** Older requesters wait for younger holders, younger ones abort. */
+        WAIT_DIE,
+        /** Older requesters abort ("wound") younger holders, younger ones wait. */
+        WOUND_WAIT,
+        /** Never wait; every conflict aborts the requester. */
+        NO_WAIT
+    }
+
+    //lock table key of a whole table; pages are keyed by their PageId
+    private static class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    //one transaction's granted or pending lock on one table or page
+    private static class LockRequest {
+        final Object resource;
+        final TransactionId tid;
+        LockMode mode;
+        //true if tid already holds a lock on resource and wants it converted
+        //to mode
+        final boolean isUpgrade;
         boolean isGranted;
+        //set when the request is withdrawn while its owner is still waiting
+        boolean isCancelled;
+        //set when the owner was picked to break a deadlock
+        boolean isVictim;
 
-        LockTableEntry(boolean isExclusive, TransactionId tid, boolean isGranted) {
-            this.isExclusive = isExclusive;
-            this.isGranted = isGranted;
+        LockRequest(Object resource, TransactionId tid, LockMode mode, boolean isUpgrade) {
+            this.resource = resource;
             this.tid = tid;
+            this.mode = mode;
+            this.isUpgrade = isUpgrade;
+            this.isGranted = false;
+            this.isCancelled = false;
+            this.isVictim = false;
+        }
+
+        boolean conflictsWith(LockRequest other) {
+            return !mode.isCompatibleWith(other.mode);
+        }
+    }
+
+    //page locks one transaction holds in one table
+    private static class PageCount {
+        int pages;
+        int exclusive;
+    }
+
+    //all granted and waiting locks on one table or page
+    private static class LockHead {
+        final ArrayList<LockRequest> granted = new ArrayList<LockRequest>();
+        final LinkedList<LockRequest> waiting = new LinkedList<LockRequest>();
+
+        LockRequest grantedTo(TransactionId tid) {
+            for (LockRequest r : granted) {
+                if (sameTid(r.tid, tid)) {
+                    return r;
+                }
+            }
+            return null;
+        }
+
+        boolean isEmpty() {
+            return granted.isEmpty() && waiting.isEmpty();
         }
     }
 
+    //map a table or page to the locks granted and requested on it
+    Map<Object, LockHead> lockTable;
+    //map a transaction to the tables and pages it holds or waits for locks on
+    Map<TransactionId, Set<Object>> transactionLocks;
+    //map a transaction to its granted page lock counts per table
+    Map<TransactionId, Map<Integer, PageCount>> pageCounts;
+    //map a blocked transaction to the requests it is waiting on; these are
+    //the out-edges of the waits-for graph
+    Map<TransactionId, Set<LockRequest>> waitingRequests;
+    //transactions wounded by an older one; they abort on their next request
+    Set<TransactionId> wounded;
+    DeadlockPolicy policy;
+    long deadlocksDetected;
+    //aborts caused by WAIT_DIE, WOUND_WAIT or NO_WAIT
+    long preventionAborts;
+    int escalationThreshold;
+    long escalations;
+
     public LockManager() {
-        lockTable = new HashMap<PageId, ArrayList<LockTableEntry>>();
-        //transactions = new HashMap<TransactionId, List<PageId>>();
-        //toStore = new HashMap<TransactionId, List<TransactionId>>();
+        this(DeadlockPolicy.DETECT);
     }
 
-    //acquire locks
-    public synchronized void acquireLock(PageId pid, TransactionId tid, boolean isExcl) throws TransactionAbortedException, InterruptedException{
+    public LockManager(DeadlockPolicy policy) {
+        lockTable = new HashMap<Object, LockHead>();
+        transactionLocks = new HashMap<TransactionId, Set<Object>>();
+        pageCounts = new HashMap<TransactionId, Map<Integer, PageCount>>();
+        waitingRequests = new HashMap<TransactionId, Set<LockRequest>>();
+        wounded = new HashSet<TransactionId>();
+        this.policy = policy;
+        deadlocksDetected = 0;
+        preventionAborts = 0;
+        escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+        escalations = 0;
+    }
+
+    public synchronized DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /** Change the policy; requests that are already waiting are not rechecked. */
+    public synchronized void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    public synchronized int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Set how many page locks a transaction may hold in one table before
+     * they are escalated to a table lock.
+     */
+    public synchronized void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
 
-        if(isLockAvailable(pid, tid, isExcl)){
-            ArrayList<LockTableEntry> toAdd = lockTable.get(pid);
-            LockTableEntry entry = new LockTableEntry(isExcl, tid, true);
-            if(!toAdd.contains(entry)){
-                toAdd.add(entry);
+    /** @return the number of times page locks were escalated to a table lock */
+    public synchronized long getEscalationCount() {
+        return escalations;
+    }
+
+    /**
+     * Acquire a shared or exclusive lock on pid for tid, blocking until the
+     * lock is granted. The matching IS or IX lock is taken on pid's table
+     * first, and nothing more is taken if the table lock already covers pid.
+     * A shared lock already held by tid is upgraded when an exclusive lock is
+     * requested; upgrades are queued ahead of new requests.
+     *
+     * @throws DeadlockException if tid is chosen as the victim of a deadlock
+     * @throws TransactionAbortedException if tid's locks are released while
+     *   it waits, or the deadlock policy aborts it
+     */
+    public synchronized void acquireLock(PageId pid, TransactionId tid, boolean isExcl)
+            throws TransactionAbortedException, InterruptedException {
+        if (tid != null && wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        TableKey table = new TableKey(pid.getTableId());
+        LockMode tableMode = heldMode(table, tid);
+        if (tableMode != null && tableMode.covers(isExcl ? LockMode.X : LockMode.S)) {
+            return;
+        }
+        lock(table, tid, isExcl ? LockMode.IX : LockMode.IS);
+        lock(pid, tid, isExcl ? LockMode.X : LockMode.S);
+
+        PageCount count = pageCount(tid, table.tableId);
+        if (count != null && count.pages > escalationThreshold) {
+            escalate(table, tid, count.exclusive > 0 ? LockMode.X : LockMode.S);
+        }
+    }
+
+    /**
+     * Lock a whole table for tid in the given mode, blocking until the lock
+     * is granted. A lock tid already holds on the table is converted to the
+     * weakest mode covering both. Page locks the new table lock covers are
+     * released.
+     *
+     * @throws DeadlockException if tid is chosen as the victim of a deadlock
+     * @throws TransactionAbortedException if tid's locks are released while
+     *   it waits, or the deadlock policy aborts it
+     */
+    public synchronized void acquireTableLock(int tableId, TransactionId tid, LockMode mode)
+            throws TransactionAbortedException, InterruptedException {
+        if (tid != null && wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        TableKey table = new TableKey(tableId);
+        lock(table, tid, mode);
+        releaseCoveredPages(table, tid);
+    }
+
+    /**
+     * Take the IS or IX locks on pid's table and on pid itself that a
+     * transaction needs before it locks single rows on the page.
+     *
+     * @throws DeadlockException if tid is chosen as the victim of a deadlock
+     * @throws TransactionAbortedException if tid's locks are released while
+     *   it waits, or the deadlock policy aborts it
+     */
+    public synchronized void acquireIntentionLock(PageId pid, TransactionId tid, boolean isExcl)
+            throws TransactionAbortedException, InterruptedException {
+        if (tid != null && wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        LockMode intent = isExcl ? LockMode.IX : LockMode.IS;
+        TableKey table = new TableKey(pid.getTableId());
+        LockMode tableMode = heldMode(table, tid);
+        if (tableMode != null && tableMode.covers(isExcl ? LockMode.X : LockMode.S)) {
+            return;
+        }
+        lock(table, tid, intent);
+        lock(pid, tid, intent);
+    }
+
+    /**
+     * Acquire a shared or exclusive lock on one row for tid, taking the
+     * intention locks on its page and table first. Blocks until the lock is
+     * granted, unless a table or page lock tid holds already covers the row.
+     *
+     * @throws DeadlockException if tid is chosen as the victim of a deadlock
+     * @throws TransactionAbortedException if tid's locks are released while
+     *   it waits, or the deadlock policy aborts it
+     */
+    public synchronized void acquireRowLock(RecordId rid, TransactionId tid, boolean isExcl)
+            throws TransactionAbortedException, InterruptedException {
+        LockMode mode = isExcl ? LockMode.X : LockMode.S;
+        LockMode pageMode = heldMode(rid.getPageId(), tid);
+        if (pageMode != null && pageMode.covers(mode)) {
+            return;
+        }
+        acquireIntentionLock(rid.getPageId(), tid, isExcl);
+        LockMode tableMode = heldMode(new TableKey(rid.getPageId().getTableId()), tid);
+        if (tableMode != null && tableMode.covers(mode)) {
+            return;
+        }
+        lock(rid, tid, mode);
+    }
+
+    /**
+     * Lock one row exclusively for tid if that is possible without waiting.
+     * The caller must already hold IX locks on the row's table and page.
+     *
+     * @return true if tid now holds an exclusive lock on rid
+     */
+    public synchronized boolean tryRowLock(RecordId rid, TransactionId tid) {
+        LockHead head = lockTable.get(rid);
+        if (head == null) {
+            head = new LockHead();
+            lockTable.put(rid, head);
+        }
+        LockRequest held = head.grantedTo(tid);
+        if (held != null && held.mode == LockMode.X) {
+            return true;
+        }
+        LockRequest req = new LockRequest(rid, tid, LockMode.X, held != null);
+        if (!head.waiting.isEmpty() || !canGrant(head, req)) {
+            if (head.isEmpty()) {
+                lockTable.remove(rid);
+            }
+            return false;
+        }
+        if (held == null) {
+            indexLock(tid, rid);
+        }
+        grant(head, req);
+        return true;
+    }
+
+    /** @return true if tid holds a lock on rid itself or on its page or table */
+    public synchronized boolean holdsRowLock(TransactionId tid, RecordId rid) {
+        if (tid == null) {
+            return false;
+        }
+        //an S, SIX or X lock on the table or page covers the row
+        LockMode tableMode = heldMode(new TableKey(rid.getPageId().getTableId()), tid);
+        LockMode pageMode = heldMode(rid.getPageId(), tid);
+        if ((tableMode != null && tableMode.covers(LockMode.S))
+                || (pageMode != null && pageMode.covers(LockMode.S))) {
+            return true;
+        }
+        return heldMode(rid, tid) != null;
+    }
+
+    //the mode tid holds resource in, or null
+    private LockMode heldMode(Object resource, TransactionId tid) {
+        LockHead head = lockTable.get(resource);
+        if (head == null) {
+            return null;
+        }
+        LockRequest held = head.grantedTo(tid);
+        return held == null ? null : held.mode;
+    }
+
+    //lock one table or page, converting a lock tid already holds on it
+    private void lock(Object resource, TransactionId tid, LockMode mode)
+            throws TransactionAbortedException, InterruptedException {
+        LockHead head = lockTable.get(resource);
+        if (head == null) {
+            head = new LockHead();
+            lockTable.put(resource, head);
+        }
+
+        LockRequest held = head.grantedTo(tid);
+        if (held != null && held.mode.covers(mode)) {
+            //already holds a lock that is at least as strong
+            return;
+        }
+
+        LockRequest req;
+        if (held != null) {
+            req = new LockRequest(resource, tid, held.mode.combine(mode), true);
+            if (canGrant(head, req)) {
+                grant(head, req);
+                return;
+            }
+            //upgrades go behind other upgrades but ahead of new requests
+            int i = 0;
+            while (i < head.waiting.size() && head.waiting.get(i).isUpgrade) {
+                i++;
             }
+            head.waiting.add(i, req);
         } else {
-            ArrayList<LockTableEntry> toAdd = lockTable.get(pid);
-            LockTableEntry entry = new LockTableEntry(isExcl, tid, false);
-            if(!toAdd.contains(entry)){
-                toAdd.add(entry);
-            }
-        }
-        timeoutDeadlockDetector(pid, tid, isExcl);
-        //System.out.println("You returned from deadlock detector.");
-
-        //if no deadlock detected grant the lock
-        lockTable.get(pid).add(new LockTableEntry(isExcl, tid, true));
-        //if a deadlock was detected just quit the method, essentially aborting the current transaction
-    }
-
-    public void timeoutDeadlockDetector(PageId pid, TransactionId tid, boolean isExcl) throws InterruptedException, TransactionAbortedException {
-        //give a transaction 1 second to finish (1000ms)
-        long timeout = 1000;
-        long waitTime = 0;
-        long startTime = System.currentTimeMillis();
-        while(!isLockAvailable(pid, tid, isExcl)){
-            try{
-                Thread.sleep(1);
-                long currentTime = System.currentTimeMillis();
-                long timeSoFar = currentTime - startTime;
-                waitTime += timeSoFar;
-                if(waitTime >= timeout){
+            req = new LockRequest(resource, tid, mode, false);
+            indexLock(tid, resource);
+            //only skip the queue if nobody is waiting, so waiters can't starve
+            if (head.waiting.isEmpty() && canGrant(head, req)) {
+                grant(head, req);
+                return;
+            }
+            head.waiting.addLast(req);
+        }
+
+        waitForGrant(head, req);
+    }
+
+    //replace tid's page locks in table by one table lock, but only if that
+    //lock can be had without waiting
+    private void escalate(TableKey table, TransactionId tid, LockMode mode) {
+        LockHead head = lockTable.get(table);
+        LockRequest held = head.grantedTo(tid);
+        LockRequest req = new LockRequest(table, tid, held.mode.combine(mode), true);
+        if (!canGrant(head, req)) {
+            return;
+        }
+        grant(head, req);
+        escalations++;
+        releaseCoveredPages(table, tid);
+    }
+
+    //release tid's page locks in table that its table lock makes redundant
+    private void releaseCoveredPages(TableKey table, TransactionId tid) {
+        LockMode tableMode = heldMode(table, tid);
+        Set<Object> resources = transactionLocks.get(tid);
+        if (tableMode == null || resources == null
+                || !tableMode.covers(LockMode.S) || pageCount(tid, table.tableId) == null) {
+            return;
+        }
+        boolean changed = false;
+        for (Object r : new ArrayList<Object>(resources)) {
+            if (!(r instanceof PageId) || ((PageId) r).getTableId() != table.tableId) {
+                continue;
+            }
+            LockMode pageMode = heldMode(r, tid);
+            //pages still waiting for a lock, or X pages under an S or SIX lock
+            if (pageMode == null || !tableMode.covers(pageMode)) {
+                continue;
+            }
+            changed |= removeFromHead(r, tid);
+            unindexLock(tid, r);
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+    private PageCount pageCount(TransactionId tid, int tableId) {
+        Map<Integer, PageCount> counts = pageCounts.get(tid);
+        return counts == null ? null : counts.get(tableId);
+    }
+
+    //keep pageCounts in step when a page lock is granted, converted or dropped
+    private void countPageLock(LockRequest r, int pages, int exclusive) {
+        if (!(r.resource instanceof PageId)) {
+            return;
+        }
+        int tableId = ((PageId) r.resource).getTableId();
+        Map<Integer, PageCount> counts = pageCounts.get(r.tid);
+        if (counts == null) {
+            counts = new HashMap<Integer, PageCount>();
+            pageCounts.put(r.tid, counts);
+        }
+        PageCount count = counts.get(tableId);
+        if (count == null) {
+            count = new PageCount();
+            counts.put(tableId, count);
+        }
+        count.pages += pages;
+        count.exclusive += exclusive;
+        if (count.pages == 0) {
+            counts.remove(tableId);
+            if (counts.isEmpty()) {
+                pageCounts.remove(r.tid);
+            }
+        }
+    }
+
+    //block on our monitor until req is granted, cancelled or picked as a
+    //deadlock victim
+    private void waitForGrant(LockHead head, LockRequest req)
+            throws TransactionAbortedException, InterruptedException {
+        Set<LockRequest> waits = waitingRequests.get(req.tid);
+        if (waits == null) {
+            waits = new HashSet<LockRequest>();
+            waitingRequests.put(req.tid, waits);
+        }
+        waits.add(req);
+        try {
+            preventDeadlock(req);
+            //prevention policies don't need detection, but a blocker can
+            //still change while we wait, so keep it as a backstop
+            resolveDeadlock(req.tid);
+            while (!req.isGranted) {
+                if (req.isVictim) {
+                    throw new DeadlockException();
+                }
+                if (req.isCancelled) {
                     throw new TransactionAbortedException();
                 }
-                startTime = currentTime;
-            }  catch (InterruptedException ie){
-                throw new InterruptedException("Interrupted exception.");
+                wait(DEADLOCK_CHECK_MS);
+                if (!req.isGranted && !req.isCancelled && !req.isVictim) {
+                    resolveDeadlock(req.tid);
+                }
+            }
+        } finally {
+            waits.remove(req);
+            if (waits.isEmpty()) {
+                waitingRequests.remove(req.tid);
+            }
+            //also runs if the waiting thread is interrupted or stopped
+            if (!req.isGranted && !req.isCancelled) {
+                head.waiting.remove(req);
+                if (grantWaiters(head)) {
+                    notifyAll();
+                }
+                if (head.grantedTo(req.tid) == null) {
+                    unindexLock(req.tid, req.resource);
+                }
+                //a victim's head may already have been dropped and replaced
+                if (head.isEmpty() && lockTable.get(req.resource) == head) {
+                    lockTable.remove(req.resource);
+                }
             }
         }
+    }
 
+    //apply the WAIT_DIE, WOUND_WAIT or NO_WAIT rule to a request that is
+    //about to wait; throws if the requester has to abort
+    private void preventDeadlock(LockRequest req) throws TransactionAbortedException {
+        if (policy == DeadlockPolicy.DETECT) {
+            return;
+        }
+        Set<TransactionId> blockers = blockers(req);
+        if (policy == DeadlockPolicy.NO_WAIT) {
+            preventionAborts++;
+            throw new TransactionAbortedException();
+        }
+        if (policy == DeadlockPolicy.WAIT_DIE) {
+            for (TransactionId b : blockers) {
+                if (age(b) < age(req.tid)) {
+                    //younger than a blocker: die
+                    preventionAborts++;
+                    throw new TransactionAbortedException();
+                }
+            }
+            return;
+        }
+        //WOUND_WAIT: wound every younger blocker, wait for the older ones
+        boolean woundedAny = false;
+        for (TransactionId b : blockers) {
+            if (b != null && age(b) > age(req.tid) && wounded.add(b)) {
+                preventionAborts++;
+                woundedAny = true;
+                //a wounded transaction that is blocked aborts right away,
+                //one that is running aborts on its next lock request
+                Set<LockRequest> waits = waitingRequests.get(b);
+                if (waits != null) {
+                    for (LockRequest r : waits) {
+                        r.isVictim = true;
+                        LockHead head = lockTable.get(r.resource);
+                        head.waiting.remove(r);
+                        grantWaiters(head);
+                    }
+                }
+            }
+        }
+        if (woundedAny) {
+            notifyAll();
+        }
     }
 
-    //a page has a lock, we need to check if that lock is free now (retry method instead of queued locks)
-    public synchronized boolean isLockAvailable(PageId pid, TransactionId tid, boolean isExclusive){
-        List<LockTableEntry> locks = lockTable.get(pid);
-        if(locks == null){
-            lockTable.put(pid, new ArrayList<LockTableEntry>());
-            return true;
+    //transactions that the request can't be granted before
+    private Set<TransactionId> blockers(LockRequest req) {
+        Set<TransactionId> result = new HashSet<TransactionId>();
+        LockHead head = lockTable.get(req.resource);
+        if (head == null) {
+            return result;
+        }
+        for (LockRequest g : head.granted) {
+            if (!sameTid(g.tid, req.tid) && g.conflictsWith(req)) {
+                result.add(g.tid);
+            }
         }
+        for (LockRequest w : head.waiting) {
+            if (w == req) {
+                break;
+            }
+            if (!sameTid(w.tid, req.tid) && w.conflictsWith(req)) {
+                result.add(w.tid);
+            }
+        }
+        return result;
+    }
 
-        LockTableEntry readWriteTransition = null;
-        int anotherSharedLock = -1;
-        for(int i = 0; i < locks.size(); i++){
-            LockTableEntry entry = locks.get(i);
-            //if tid's are equal
-            if(tid != null && entry.tid != null){
-                if(entry.tid.equals(tid)){
-                    if(entry.isGranted){
-                        //matching tid's where start as R and want to change to W - update arrayList
-                        if(!entry.isExclusive && isExclusive){
-                            readWriteTransition = entry;
-                        } else{
-                            //if current lock is exclusive and we want an exclusive lock or
-                            // if current lock is shared and we want shared or
-                            //  if current lock is exclusive and we want shared
-                            return true;
-                        }
+    //depth-first search of the waits-for graph for a path back to start
+    private boolean findCycle(TransactionId tid, TransactionId start,
+                              List<TransactionId> path, Set<TransactionId> visited) {
+        path.add(tid);
+        visited.add(tid);
+        Set<LockRequest> waits = waitingRequests.get(tid);
+        if (waits != null) {
+            for (LockRequest r : waits) {
+                //already withdrawn, its owner just hasn't woken up yet
+                if (r.isVictim || r.isCancelled) {
+                    continue;
+                }
+                for (TransactionId next : blockers(r)) {
+                    if (sameTid(next, start)) {
+                        return true;
                     }
-                    //if tid's do not match
-                }else{
-                    if(entry.isGranted){
-                        //we cannot grant a lock regardless if R or W if the existing lock is W
-                        if(entry.isExclusive){
-                            return false;
-                            //if the existing lock is shared
-                        }else {
-                            //The next lock might also be shared. Need to know the final
-                            //shared/granted lock so that we can place this new lock in the correct sequence
-                            anotherSharedLock = i;
-                        }
+                    if (!visited.contains(next) && findCycle(next, start, path, visited)) {
+                        return true;
                     }
                 }
             }
         }
-        //FOR READ_WRITE - adjusting list after changing previously READ_ONLY to READ_WRITE
-        if(readWriteTransition != null){
-            if(anotherSharedLock == -1){
-                return true;
-            } else {
-                locks.remove(readWriteTransition);
-                if(locks.size() != anotherSharedLock){
-                    locks.add(anotherSharedLock + 1, new LockTableEntry(isExclusive, tid, false));
-                } else {
-                    locks.add(new LockTableEntry(isExclusive, tid, false));
-                }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    //if tid is on a waits-for cycle, fail the waits of the cheapest
+    //transaction on it
+    private void resolveDeadlock(TransactionId tid) {
+        List<TransactionId> cycle = new ArrayList<TransactionId>();
+        if (!findCycle(tid, tid, cycle, new HashSet<TransactionId>())) {
+            return;
+        }
+        deadlocksDetected++;
+
+        TransactionId victim = cycle.get(0);
+        int victimLocks = Integer.MAX_VALUE;
+        for (TransactionId t : cycle) {
+            Set<Object> resources = transactionLocks.get(t);
+            int locks = resources == null ? 0 : resources.size();
+            if (locks < victimLocks
+                    || (locks == victimLocks && age(t) > age(victim))) {
+                victim = t;
+                victimLocks = locks;
+            }
+        }
+
+        for (LockRequest r : waitingRequests.get(victim)) {
+            r.isVictim = true;
+            LockHead head = lockTable.get(r.resource);
+            head.waiting.remove(r);
+            grantWaiters(head);
+        }
+        notifyAll();
+    }
+
+    /** @return the number of deadlocks detected so far */
+    public synchronized long getDeadlockCount() {
+        return deadlocksDetected;
+    }
+
+    /** @return the number of transactions aborted by WAIT_DIE, WOUND_WAIT or NO_WAIT */
+    public synchronized long getPreventionAbortCount() {
+        return preventionAborts;
+    }
+
+    //some callers lock on behalf of a null transaction
+    private static boolean sameTid(TransactionId a, TransactionId b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    //larger is younger
+    private static long age(TransactionId tid) {
+        return tid == null ? -1 : tid.getId();
+    }
+
+    //true if req conflicts with no lock granted to another transaction
+    private boolean canGrant(LockHead head, LockRequest req) {
+        for (LockRequest g : head.granted) {
+            if (sameTid(g.tid, req.tid)) {
+                continue;
+            }
+            if (g.conflictsWith(req)) {
                 return false;
             }
         }
-        //in the case of a R transitioning to W we need to see if locks is empty and then if we want a W lock we have to deny
-        if(!locks.isEmpty() && isExclusive){
+        return true;
+    }
+
+    private void grant(LockHead head, LockRequest req) {
+        if (req.isUpgrade) {
+            LockRequest held = head.grantedTo(req.tid);
+            if (req.mode == LockMode.X && held.mode != LockMode.X) {
+                countPageLock(req, 0, 1);
+            }
+            held.mode = req.mode;
+        } else {
+            head.granted.add(req);
+            countPageLock(req, 1, req.mode == LockMode.X ? 1 : 0);
+        }
+        req.isGranted = true;
+    }
+
+    //grant queued requests in FIFO order until one has to keep waiting
+    private boolean grantWaiters(LockHead head) {
+        boolean grantedAny = false;
+        while (!head.waiting.isEmpty()) {
+            LockRequest next = head.waiting.getFirst();
+            if (!canGrant(head, next)) {
+                break;
+            }
+            head.waiting.removeFirst();
+            grant(head, next);
+            grantedAny = true;
+        }
+        return grantedAny;
+    }
+
+    private void indexLock(TransactionId tid, Object resource) {
+        Set<Object> resources = transactionLocks.get(tid);
+        if (resources == null) {
+            resources = new HashSet<Object>();
+            transactionLocks.put(tid, resources);
+        }
+        resources.add(resource);
+    }
+
+    private void unindexLock(TransactionId tid, Object resource) {
+        Set<Object> resources = transactionLocks.get(tid);
+        if (resources != null) {
+            resources.remove(resource);
+            if (resources.isEmpty()) {
+                transactionLocks.remove(tid);
+            }
+        }
+    }
+
+    //drop tid's granted and waiting requests on one table or page and let
+    //waiters through, returns false if it had no locks at all
+    private boolean removeFromHead(Object resource, TransactionId tid) {
+        LockHead head = lockTable.get(resource);
+        if (head == null) {
             return false;
         }
+        for (Iterator<LockRequest> it = head.granted.iterator(); it.hasNext(); ) {
+            LockRequest r = it.next();
+            if (sameTid(r.tid, tid)) {
+                countPageLock(r, -1, r.mode == LockMode.X ? -1 : 0);
+                it.remove();
+            }
+        }
+        for (Iterator<LockRequest> it = head.waiting.iterator(); it.hasNext(); ) {
+            LockRequest r = it.next();
+            if (sameTid(r.tid, tid)) {
+                //wake the owner so it gives up instead of waiting forever
+                r.isCancelled = true;
+                it.remove();
+            }
+        }
+        grantWaiters(head);
+        if (head.isEmpty()) {
+            lockTable.remove(resource);
+        }
         return true;
     }
 
-    //release one lock
+    //release one page lock; the table's intention lock is kept
     public synchronized void releaseLock(PageId pid, TransactionId tid) {
-        //go to this page and remove the lock associated with this tid
-        ArrayList<LockTableEntry> locks = lockTable.get(pid);
-        locks.removeIf(l -> l.tid != null && l.tid.equals(tid));
-
+        if (removeFromHead(pid, tid)) {
+            notifyAll();
+        }
+        unindexLock(tid, pid);
     }
 
-    //release all locks
+    //release all locks, only visiting the tables and pages tid actually locked
     public synchronized void releaseAllLocks(TransactionId tid) {
-        //for each pid in lockTable, get the list of locks associated with it. Need to iterate over every
-        // page looking at each page for this tid, removing all locks with this tid (on every page)
-        for(PageId p : lockTable.keySet()){
-            ArrayList<LockTableEntry> locks = lockTable.get(p);
-            //find all the tid's on this page and remove them if the tid's match
-            if(tid != null)
-            locks.removeIf(l -> l.tid != null && l.tid.equals(tid));
+        if (tid == null) {
+            return;
+        }
+        wounded.remove(tid);
+        Set<Object> resources = transactionLocks.remove(tid);
+        if (resources == null) {
+            return;
+        }
+        boolean changed = false;
+        for (Object r : resources) {
+            changed |= removeFromHead(r, tid);
+        }
+        pageCounts.remove(tid);
+        if (changed) {
+            notifyAll();
         }
     }
 
     //BufferPool has a holdsLock() method that checks if a specified transaction has a lock on the specified page
     public synchronized boolean holdsLock(TransactionId tid, PageId pid){
-        //to check if a lock is held (i.e. granted) we need a LockTableEntry item
-        //using pid, get the list of locks associated with it, for each one check for isGranted
-        if (lockTable.containsKey(pid)) {
-            ArrayList<LockTableEntry> lte = lockTable.get(pid);
-            for (LockTableEntry l : lte) {
-                //need to look at all of them before return false because could have multiple granted read locks
-                if (tid!= null && l.tid != null && l.isGranted && l.tid.equals(tid)) {
-                    return true;
-                }
-            }
+        if (tid == null) {
+            return false;
         }
-        return false;
+        LockMode tableMode = heldMode(new TableKey(pid.getTableId()), tid);
+        if (tableMode != null && tableMode.covers(LockMode.S)) {
+            return true;
+        }
+        return heldMode(pid, tid) != null;
+    }
+
+    /** @return the mode tid holds on the whole table, or null if it holds none */
+    public synchronized LockMode tableLockMode(TransactionId tid, int tableId) {
+        return heldMode(new TableKey(tableId), tid);
     }
 }
@@ -0,0 +1,62 @@
+package simpledb;
+
+/**
+ * Lock modes for multi-granularity locking. Tables are locked in any of the
+ * five modes; the intention modes (IS, IX, SIX) announce that the
+ * transaction will take S or X locks on pages underneath.
+ *
+ * @see LockManager
+ */
+public enum LockMode {
+    /** Intention shared: will read some pages. */
+    IS,
+    /** Intention exclusive: will write some pages. */
+    IX,
+    /** Shared: reads everything underneath. */
+    S,
+    /** Shared plus intention exclusive: reads everything, writes some pages. */
+    SIX,
+    /** Exclusive: reads and writes everything underneath. */
+    X;
+
+    //COMPATIBLE[a][b] is true if a and b can be held by different transactions
+    private static final boolean[][] COMPATIBLE = {
+        //            IS     IX     S      SIX    X
+        /* IS  */ { true,  true,  true,  true,  false },
+        /* IX  */ { true,  true,  false, false, false },
+        /* S   */ { true,  false, true,  false, false },
+        /* SIX */ { true,  false, false, false, false },
+        /* X   */ { false, false, false, false, false },
+    };
+
+    /** @return true if this mode and other can be held by different transactions */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode that grants everything this mode and other
+     *   grant; used when a transaction holding one mode asks for another
+     */
+    public LockMode combine(LockMode other) {
+        if (this == other) {
+            return this;
+        }
+        if (this == X || other == X) {
+            return X;
+        }
+        if (this == SIX || other == SIX) {
+            return SIX;
+        }
+        if ((this == S && other == IX) || (this == IX && other == S)) {
+            return SIX;
+        }
+        //the remaining pairs involve IS, which the other mode covers
+        return this == IS ? other : this;
+    }
+
+    /** @return true if holding this mode already grants everything other grants */
+    public boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+}
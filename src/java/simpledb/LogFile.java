@@ -5,7 +5,11 @@ import simpledb.Database;
 import simpledb.TransactionId;
 
 import java.io.*;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.lang.reflect.*;
 
 /**
@@ -54,8 +58,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, BULK_LOAD, and LSM_WRITE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -70,6 +74,17 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> BULK_LOAD records consist of an integer table id and an integer
+first page number.  They are written before a HeapFile bulk load
+appends pages from that page on, so the pages can be emptied again if
+the transaction does not commit.
+
+<li> LSM_WRITE records consist of an integer table id, a long integer
+sequence number, a byte that is 1 for a delete, and the tuple inserted
+or deleted, as its fields serialize it.  They are written right before
+the commit record of the transaction that wrote an LsmFile, and are the
+only durable copy of the write until the memtable holding it is flushed.
+
 </ul>
 
 */
@@ -85,6 +100,8 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int BULK_LOAD_RECORD = 6;
+    static final int LSM_WRITE_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -96,6 +113,24 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /* Group commit.  Every appended record gets a sequence number.  A commit
+       (or a page flush that needs WAL) waits until its sequence number is
+       durable.  The first waiter becomes the leader of the next batch: it
+       waits up to groupCommitDelay for more waiters to join, issues a single
+       force() covering everything appended so far, and releases the whole
+       batch.  groupLock is never acquired while holding this, and nobody
+       waits on groupLock while holding this. */
+    static final int DEFAULT_GROUP_COMMIT_MAX_BATCH = 64;
+
+    long appendSeq = 0; //protected by this
+    private final Object groupLock = new Object();
+    long durableSeq = 0; //protected by groupLock
+    boolean batchLeaderActive = false; //protected by groupLock
+    int batchWaiters = 0; //protected by groupLock
+    long groupCommitDelayNanos = 0; //protected by groupLock
+    int groupCommitMaxBatch = DEFAULT_GROUP_COMMIT_MAX_BATCH; //protected by groupLock
+    long groupForces = 0; //protected by groupLock
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -128,6 +163,7 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendSeq++;
         if(recoveryUndecided){
             recoveryUndecided = false;
             raf.seek(0);
@@ -172,11 +208,23 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log is forced to disk.  Concurrent commits
+        share a single force (see awaitDurable).
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
+        awaitDurable(appendCommit(tid));
+    }
+
+    /** Write a commit record for the specified tid without waiting for
+        it to be forced; it is durable once groupForce returns.  Lets a
+        caller append the record under a monitor of its own and wait for
+        the force after releasing it.
+
+        @return the sequence number of the commit record
+    */
+    synchronized long appendCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
@@ -185,8 +233,118 @@ public class LogFile {
         raf.writeLong(tid.getId());
         raf.writeLong(currentOffset);
         currentOffset = raf.getFilePointer();
-        force();
         tidToFirstLogRecord.remove(tid.getId());
+        return appendSeq;
+    }
+
+    /** Wait until every record appended so far is on disk, sharing the
+        force with any other thread that is waiting at the same time.
+        Must not be called while holding this LogFile's monitor.
+    */
+    public void groupForce() throws IOException {
+        long seq;
+        synchronized (this) {
+            seq = appendSeq;
+        }
+        awaitDurable(seq);
+    }
+
+    /** Set how long the leader of a group commit batch waits for more
+        committers before forcing the log, and how many waiters end that
+        wait early.  A delay of 0 only batches commits that arrive while
+        a force is already in progress.
+    */
+    public void setGroupCommit(long delay, TimeUnit unit, int maxBatch) {
+        if (delay < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("Invalid group commit settings");
+        }
+        synchronized (groupLock) {
+            groupCommitDelayNanos = unit.toNanos(delay);
+            groupCommitMaxBatch = maxBatch;
+        }
+    }
+
+    /** @return the number of forces issued on behalf of group commit */
+    public long getGroupForceCount() {
+        synchronized (groupLock) {
+            return groupForces;
+        }
+    }
+
+    // block until the record with sequence number seq is durable
+    void awaitDurable(long seq) throws IOException {
+        while (true) {
+            synchronized (groupLock) {
+                batchWaiters++;
+                groupLock.notifyAll(); // a leader may be waiting for the batch to fill
+                try {
+                    while (durableSeq < seq && batchLeaderActive) {
+                        groupLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting for group commit");
+                } finally {
+                    batchWaiters--;
+                }
+                if (durableSeq >= seq) {
+                    return;
+                }
+                // nobody is flushing; lead the next batch
+                batchLeaderActive = true;
+            }
+
+            long forced = -1;
+            try {
+                synchronized (groupLock) {
+                    long deadline = System.nanoTime() + groupCommitDelayNanos;
+                    long remaining = groupCommitDelayNanos;
+                    while (remaining > 0 && batchWaiters + 1 < groupCommitMaxBatch) {
+                        TimeUnit.NANOSECONDS.timedWait(groupLock, remaining);
+                        remaining = deadline - System.nanoTime();
+                    }
+                }
+                forced = forceAppended();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for group commit");
+            } finally {
+                synchronized (groupLock) {
+                    batchLeaderActive = false;
+                    if (forced > durableSeq) {
+                        durableSeq = forced;
+                    }
+                    if (forced >= 0) {
+                        groupForces++;
+                    }
+                    groupLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    // force everything appended so far and return its sequence number; the
+    // force itself runs outside our monitor so appends can continue
+    private long forceAppended() throws IOException {
+        while (true) {
+            FileChannel ch;
+            long target;
+            synchronized (this) {
+                target = appendSeq;
+                ch = raf.getChannel();
+            }
+            try {
+                ch.force(true);
+                return target;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // logTruncate swapped in a new file; force that one instead
+                synchronized (this) {
+                    if (raf.getChannel() == ch) {
+                        throw e;
+                    }
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -221,6 +379,87 @@ public class LogFile {
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
+    /** Write a BULK_LOAD record for a bulk load of the specified table
+        that is about to append pages from firstPage on, and wait until
+        it is on disk, so the pages are never on disk without it.
+        @param tid The transaction loading the table
+        @param tableId The table being loaded
+        @param firstPage The first page the load writes
+
+        @see simpledb.BulkLoadable#bulkLoad
+    */
+    public void logBulkLoad(TransactionId tid, int tableId, int firstPage)
+        throws IOException {
+        long seq;
+        synchronized (this) {
+            Debug.log("BULK LOAD, offset = " + raf.getFilePointer());
+            preAppend();
+            raf.writeInt(BULK_LOAD_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeInt(tableId);
+            raf.writeInt(firstPage);
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            seq = appendSeq;
+        }
+        awaitDurable(seq);
+    }
+
+    /** Write an LSM_WRITE record for each insert into or delete from an
+        LsmFile by a transaction that is about to commit, in a single
+        append.  They are not forced; the commit record forces them.
+        @param tid The transaction writing the table
+        @param tableId The table written
+        @param writes The tuples inserted or deleted, with their sequence
+        numbers
+
+        @see simpledb.LsmFile
+    */
+    public synchronized void logLsmWrites(TransactionId tid, int tableId,
+                                          Collection<Map.Entry<LsmFile.Key, LsmFile.Entry>> writes)
+        throws IOException {
+        preAppend();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Map.Entry<LsmFile.Key, LsmFile.Entry> w : writes) {
+            //where this record begins once the batch is written
+            long start = currentOffset + out.size();
+            out.writeInt(LSM_WRITE_RECORD);
+            out.writeLong(tid.getId());
+            out.writeInt(tableId);
+            out.writeLong(w.getKey().seq);
+            out.writeByte(w.getValue().isTombstone() ? 1 : 0);
+            out.write(tupleData(w.getValue().tuple));
+            out.writeLong(start);
+        }
+        raf.write(bytes.toByteArray());
+        currentOffset = raf.getFilePointer();
+    }
+
+    byte[] tupleData(Tuple t) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(t.getTupleDesc().getSize());
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            t.getField(i).serialize(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    Tuple readTupleData(RandomAccessFile raf, TupleDesc td) throws IOException {
+        byte[] data = new byte[td.getSize()];
+        raf.readFully(data);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.setField(i, td.getFieldType(i).parse(in));
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("bad tuple in LSM_WRITE record", e);
+        }
+        return t;
+    }
+
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
@@ -323,6 +562,19 @@ public class LogFile {
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
+            //flush before taking our own monitor: flushing a page latches its
+            //buffer pool partition and then logs the write, so holding this
+            //monitor while waiting for a partition latch could deadlock
+            Database.getBufferPool().flushAllPages();
+            //LSM writes before the checkpoint must be in runs before
+            //their log records can be truncated
+            Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+            while (tables.hasNext()) {
+                DbFile f = Database.getCatalog().getDatabaseFile(tables.next());
+                if (f instanceof LsmFile) {
+                    ((LsmFile) f).flush();
+                }
+            }
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
@@ -330,7 +582,6 @@ public class LogFile {
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
-                Database.getBufferPool().flushAllPages();
                 startCpOffset = raf.getFilePointer();
                 raf.writeInt(CHECKPOINT_RECORD);
                 raf.writeLong(-1); //no tid , but leave space for convenience
@@ -432,6 +683,17 @@ public class LogFile {
                 case BEGIN_RECORD:
                     tidToFirstLogRecord.put(record_tid,newStart);
                     break;
+                case BULK_LOAD_RECORD:
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    break;
+                case LSM_WRITE_RECORD:
+                    int lsmTable = raf.readInt();
+                    logNew.writeInt(lsmTable);
+                    logNew.writeLong(raf.readLong());
+                    logNew.writeByte(raf.readByte());
+                    logNew.write(tupleData(readTupleData(raf, Database.getCatalog().getTupleDesc(lsmTable))));
+                    break;
                 }
 
                 //all xactions finish with a pointer
@@ -513,56 +775,100 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        The UPDATE and LSM_WRITE records after the last checkpoint (or
+        all of them, if there is none) are redone when the commit record
+        of their transaction is read, so writes of transactions that
+        aborted or never finished are not; then the updates that
+        unfinished transactions flushed are undone, walking back to their
+        BEGIN records.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 Set<Long> loserTransactions = new HashSet<Long>();
+                //LsmFiles holding redone writes of each transaction
+                Map<Long, Set<LsmFile>> lsmWriters = new HashMap<Long, Set<LsmFile>>();
+                //after images of each transaction, written at its commit
+                Map<Long, List<Page>> redoPages = new HashMap<Long, List<Page>>();
                 raf.seek(0);
                 long lastCkPt = raf.readLong();
-                //read the last checkpoint (if any)
+                //redo from the end of the last checkpoint, whose pages and
+                //memtables were flushed, or from the first record
+                long redoFrom = LONG_SIZE;
                 if(lastCkPt != NO_CHECKPOINT_ID){
-                    //scan forward from the checkpoint to build set of loser transactions
-                    raf.seek(lastCkPt);
-                    raf.seek(raf.getFilePointer() + INT_SIZE + LONG_SIZE);
-                    //add all transactions to a list and then decide whether is loser or not
-                    // based on the type of command.
-                    for(int i = 0; i < raf.readInt(); i++){
+                    //transactions active at the checkpoint are losers
+                    //unless their commit or abort record follows
+                    raf.seek(lastCkPt + INT_SIZE + LONG_SIZE);
+                    int active = raf.readInt();
+                    for(int i = 0; i < active; i++){
                         loserTransactions.add(raf.readLong());
+                        raf.readLong();
                     }
+                    raf.readLong();
+                    redoFrom = raf.getFilePointer();
                 }
-                //scan forward from start of log file if no checkpoint
-                raf.seek(raf.length());
+                raf.seek(redoFrom);
                 //redo UPDATES during this pass.
                 while(raf.length() > raf.getFilePointer()){
                     int type = raf.readInt();
                     long tid = raf.readLong();
-                    if(loserTransactions.contains(tid)){
-                        if(type == UPDATE_RECORD){
-                            Page beforeImage = readPageData(raf);
-                            Page afterImage = readPageData(raf);
-                            PageId pid = beforeImage.getId();
-                            Database.getBufferPool().discardPage(pid);
-                            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(afterImage);
-                        }
-                        if(type == ABORT_RECORD || type == COMMIT_RECORD){
-                            loserTransactions.remove(tid);
+                    if(type == UPDATE_RECORD){
+                        readPageData(raf);
+                        Page afterImage = readPageData(raf);
+                        redoPages.computeIfAbsent(tid, k -> new ArrayList<Page>()).add(afterImage);
+                    }
+                    if(type == BULK_LOAD_RECORD){
+                        //the loaded pages were forced before commit,
+                        //nothing to redo
+                        raf.readInt();
+                        raf.readInt();
+                    }
+                    if(type == LSM_WRITE_RECORD){
+                        //held by the file until tid's commit record
+                        int tableId = raf.readInt();
+                        long seq = raf.readLong();
+                        boolean delete = raf.readByte() == 1;
+                        LsmFile lsm = (LsmFile) Database.getCatalog().getDatabaseFile(tableId);
+                        lsm.redo(tid, seq, delete, readTupleData(raf, lsm.getTupleDesc()));
+                        lsmWriters.computeIfAbsent(tid, k -> new HashSet<LsmFile>()).add(lsm);
+                    }
+                    if(type == CHECKPOINT_RECORD){
+                        int active = raf.readInt();
+                        raf.seek(raf.getFilePointer() + (long) active * 2 * LONG_SIZE);
+                    }
+                    if(type == COMMIT_RECORD && redoPages.containsKey(tid)){
+                        for (Page afterImage : redoPages.remove(tid)) {
+                            Database.getBufferPool().discardPage(afterImage.getId());
+                            Database.getCatalog().getDatabaseFile(afterImage.getId().getTableId()).writePage(afterImage);
                         }
-                        if(type == BEGIN_RECORD){
-                            loserTransactions.add(tid);
+                    }
+                    if(type == COMMIT_RECORD && lsmWriters.containsKey(tid)){
+                        for (LsmFile lsm : lsmWriters.remove(tid)) {
+                            lsm.redoCommit(tid);
                         }
-                    } else {
-                        throw new IOException("this tid is not in our list of tid's.");
+                    }
+                    if(type == ABORT_RECORD || type == COMMIT_RECORD){
+                        //an abort already rolled tid back
+                        redoPages.remove(tid);
+                        loserTransactions.remove(tid);
+                    }
+                    if(type == BEGIN_RECORD){
+                        loserTransactions.add(tid);
                     }
                     raf.seek(raf.getFilePointer() + LONG_SIZE);
                 }
+                //LSM writes without a commit record are never applied
+                for (Map.Entry<Long, Set<LsmFile>> w : lsmWriters.entrySet()) {
+                    for (LsmFile lsm : w.getValue()) {
+                        lsm.undo(w.getKey());
+                    }
+                }
                 //undo updates of the loser transactions
                     //Abort and Commit can't be undone
                     //Checkpoint and Begin will do nothing
                     //only 'undos' are for Update.
-                raf.seek(raf.length());
-                long currentLocation = raf.getFilePointer();
+                long currentLocation = raf.length();
                 while(currentLocation > LONG_SIZE && !loserTransactions.isEmpty()){
                     raf.seek(currentLocation - LONG_SIZE);
                     long offset = raf.readLong();
@@ -577,12 +883,24 @@ public class LogFile {
                             Database.getBufferPool().discardPage(pid);
                             Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(beforeImage);
                         }
+                        if(type == BULK_LOAD_RECORD){
+                            int tableId = raf.readInt();
+                            int firstPage = raf.readInt();
+                            ((BulkLoadable) Database.getCatalog().getDatabaseFile(tableId)).undoBulkLoad(firstPage);
+                        }
                         if(type == ABORT_RECORD || type == COMMIT_RECORD){
                             throw new IOException("Cannot undo Abort or Commit.");
                         }
+                        if(type == BEGIN_RECORD){
+                            //nothing of tid comes before this
+                            loserTransactions.remove(tid);
+                        }
                     }
-                    currentOffset = offset;
+                    currentLocation = offset;
                 }
+                //later records are appended after the recovered ones
+                raf.seek(raf.length());
+                currentOffset = raf.getFilePointer();
             }
          }
     }
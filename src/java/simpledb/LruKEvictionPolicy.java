@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil et al.). For every resident page the policy keeps
+ * the times of its last K references and evicts the page whose K-th most
+ * recent reference is oldest. Pages referenced fewer than K times are evicted
+ * first, least recently used among them first, so a single scan cannot push
+ * out pages that are referenced repeatedly.
+ * <p>
+ * Candidates are kept in a TreeSet ordered by backward K-distance, so an
+ * access is O(log n) and picking a victim only walks past dirty pages.
+ *
+ * @Threadsafe
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    /** Default history depth; LRU-2 is the usual choice. */
+    public static final int DEFAULT_K = 2;
+
+    private class History {
+        final PageId pid;
+        //last K access times, oldest first
+        final long[] times;
+        int count;
+
+        History(PageId pid) {
+            this.pid = pid;
+            this.times = new long[k];
+            this.count = 0;
+        }
+
+        void access(long now) {
+            if (count < k) {
+                times[count++] = now;
+            } else {
+                System.arraycopy(times, 1, times, 0, k - 1);
+                times[k - 1] = now;
+            }
+        }
+
+        //time of the K-th most recent access, or -1 if there is none yet
+        long kthTime() {
+            return count < k ? -1 : times[0];
+        }
+
+        long lastTime() {
+            return times[count - 1];
+        }
+    }
+
+    private final int k;
+    private final HashMap<PageId, History> histories;
+    private final TreeSet<History> order;
+    //logical clock, incremented on every access
+    private long now;
+
+    public LruKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of references remembered per page; must be at least 1
+     */
+    public LruKEvictionPolicy(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.histories = new HashMap<PageId, History>();
+        //access times are unique, so the last access breaks every tie
+        this.order = new TreeSet<History>(new Comparator<History>() {
+            public int compare(History a, History b) {
+                int c = Long.compare(a.kthTime(), b.kthTime());
+                if (c != 0) {
+                    return c;
+                }
+                return Long.compare(a.lastTime(), b.lastTime());
+            }
+        });
+        this.now = 0;
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            h = new History(pid);
+            histories.put(pid, h);
+        } else {
+            order.remove(h);
+        }
+        h.access(now++);
+        order.add(h);
+    }
+
+    public synchronized void remove(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null) {
+            order.remove(h);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Map<PageId, Page> pages) {
+        PageId fallback = null;
+        Iterator<History> it = order.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            Page pg = pages.get(h.pid);
+            if (pg == null) {
+                //evicted, but an unlatched hit recorded it again; drop it
+                //rather than offer a page that is not resident
+                it.remove();
+                histories.remove(h.pid);
+                continue;
+            }
+            if (pg.isDirty() == null) {
+                return h.pid;
+            }
+            if (fallback == null) {
+                fallback = h.pid;
+            }
+        }
+        //every page is dirty, fall back to the best candidate
+        return fallback;
+    }
+
+    public EvictionPolicy emptyCopy() {
+        return new LruKEvictionPolicy(k);
+    }
+}
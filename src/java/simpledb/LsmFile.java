@@ -0,0 +1,718 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LsmFile is a DbFile for append-heavy tables, organized as a log-structured
+ * merge tree: inserts and deletes are only logged and kept in memory, and
+ * reach disk later as whole sorted files written sequentially, so an insert
+ * never searches for a page or writes one in place.
+ * <p>
+ * Every insert gets a sequence number, and entries are sorted by the key
+ * field given to the constructor and then by sequence number. A delete adds
+ * a tombstone with the same key and sequence number as the row it deletes.
+ * Entries live in:
+ * <ul>
+ * <li> the transaction's own write buffer until it commits. The writes
+ * are logged together with LogFile.logLsmWrites just before the commit
+ * record, which makes them durable, and applied to the memtable after it.
+ * An abort drops the buffer without logging anything.
+ * <li> the memtable, a sorted in-memory map of committed entries. When it
+ * holds getMemtableLimit() entries it is frozen and a new one is started.
+ * <li> frozen memtables, which a background thread writes out as runs.
+ * <li> runs: immutable files of entries in sorted order, newest first. Once
+ * there are COMPACT_RUNS runs, a background thread merges them all into one
+ * run, dropping deleted rows and their tombstones.
+ * </ul>
+ * Scans merge all of these, and a newer copy of an entry hides older ones.
+ * <p>
+ * The table is a directory holding the runs, run-N, and a manifest listing
+ * them and the last sequence number they contain. The manifest is replaced
+ * atomically after a new run is forced to disk, so after a crash it names
+ * only complete runs. Recovery replays the logged writes of committed
+ * transactions, and checkpoints flush the memtable before the log is
+ * truncated. Pages and the BufferPool are not used.
+ * <p>
+ * Writers take an IX lock on the table, and deletes an X lock on the
+ * sequence number of the row, so transactions writing one table run
+ * concurrently and share log forces when they commit. Scans take an S lock
+ * on the table: they wait for the writers, whose writes reach the memtable
+ * before their commit record is forced, and hold off new ones.
+ *
+ * @see LogFile#logLsmWrites
+ */
+public class LsmFile implements DbFile {
+
+    /** Default number of entries in a memtable before it is flushed. */
+    public static final int DEFAULT_MEMTABLE_LIMIT = 64 * 1024;
+    /** Number of runs that triggers a background compaction. */
+    public static final int COMPACT_RUNS = 4;
+
+    //flushes and compactions of all LsmFiles
+    private static final ExecutorService background = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "lsm-background");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final File dir;
+    private final TupleDesc td;
+    private final int keyField;
+    private volatile int memtableLimit = DEFAULT_MEMTABLE_LIMIT;
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    //the in-memory levels and the runs, newest first; replaced under this
+    private ConcurrentSkipListMap<Key, Entry> memtable;
+    private List<ConcurrentSkipListMap<Key, Entry>> frozen;
+    private List<File> runs;
+    //the highest sequence number in the runs
+    private long flushedSeq;
+    private int nextRunId;
+    private boolean loaded;
+    //writes of transactions that have not completed
+    private final ConcurrentHashMap<TransactionId, ConcurrentSkipListMap<Key, Entry>> pending =
+            new ConcurrentHashMap<TransactionId, ConcurrentSkipListMap<Key, Entry>>();
+    //writes redone by recovery, by transaction id, until its commit record
+    private final Map<Long, ConcurrentSkipListMap<Key, Entry>> recovered =
+            new HashMap<Long, ConcurrentSkipListMap<Key, Entry>>();
+    //one flush and one compaction at a time
+    private final Object flushLock = new Object();
+    private final Object compactLock = new Object();
+    //background tasks not yet waited for
+    private final Queue<Future<?>> tasks = new ConcurrentLinkedQueue<Future<?>>();
+
+    /** The sort order of entries: the key field, then the sequence number. */
+    static final class Key implements Comparable<Key> {
+        final Field key;
+        final long seq;
+
+        Key(Field key, long seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+
+        public int compareTo(Key o) {
+            if (!key.equals(o.key)) {
+                return key.compare(Predicate.Op.LESS_THAN, o.key) ? -1 : 1;
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * A row, or the tombstone of a deleted one; a tombstone's tuple only
+     * has the key field.
+     */
+    static final class Entry {
+        final Tuple tuple;
+        final boolean tombstone;
+
+        Entry(Tuple tuple, boolean tombstone) {
+            this.tuple = tuple;
+            this.tombstone = tombstone;
+        }
+
+        boolean isTombstone() {
+            return tombstone;
+        }
+    }
+
+    /**
+     * Constructs an LSM file stored in the given directory, sorted on the
+     * given field.
+     */
+    public LsmFile(File dir, TupleDesc td, int keyField) {
+        this.dir = dir;
+        this.td = td;
+        this.keyField = keyField;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this file: the hash of the absolute
+     * name of its directory.
+     */
+    public int getId() {
+        return dir.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /** Set how many entries the memtable holds before it is flushed. */
+    public void setMemtableLimit(int entries) {
+        memtableLimit = entries;
+    }
+
+    public int getMemtableLimit() {
+        return memtableLimit;
+    }
+
+    /** Returns the number of runs on disk. */
+    public synchronized int numRuns() throws IOException {
+        load();
+        return runs.size();
+    }
+
+    /** LsmFiles have no pages, so no page id is valid. */
+    public Page readPage(PageId id) {
+        throw new IllegalArgumentException("an LsmFile has no pages");
+    }
+
+    /** LsmFiles have no pages, so no page id is valid. */
+    public void writePage(Page p) throws IOException {
+        throw new IllegalArgumentException("an LsmFile has no pages");
+    }
+
+    //the RecordId standing for a sequence number
+    private RecordId recordId(long seq) {
+        return new RecordId(new HeapPageId(getId(), (int) (seq >>> 32)), (int) seq);
+    }
+
+    private static long seqOf(RecordId rid) {
+        return ((long) rid.getPageId().getPageNumber() << 32) | (rid.getTupleNumber() & 0xffffffffL);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("The tupleDesc's dont match.");
+        }
+        //a new row nobody else can see yet: only the table's IX lock
+        Database.getBufferPool().lockTableIntention(tid, getId(), Permissions.READ_WRITE);
+        synchronized (this) {
+            load();
+        }
+        long seq = nextSeq.getAndIncrement();
+        t.setRecordId(recordId(seq));
+        buffer(tid).put(new Key(t.getField(keyField), seq), new Entry(t, false));
+        return new ArrayList<Page>();
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("The tuple does not exists on this page/file.");
+        }
+        //IX on the table and X on the row's sequence number
+        Database.getBufferPool().lockRow(tid, rid, Permissions.READ_WRITE);
+        long seq = seqOf(rid);
+        buffer(tid).put(new Key(t.getField(keyField), seq), new Entry(t, true));
+        return new ArrayList<Page>();
+    }
+
+    private ConcurrentSkipListMap<Key, Entry> buffer(TransactionId tid) {
+        ConcurrentSkipListMap<Key, Entry> writes = pending.get(tid);
+        if (writes == null) {
+            writes = new ConcurrentSkipListMap<Key, Entry>();
+            pending.put(tid, writes);
+            Database.getBufferPool().noteLsmWrite(tid, getId());
+        }
+        return writes;
+    }
+
+    /**
+     * Log tid's writes, which it is about to commit; they are durable once
+     * its commit record is.
+     */
+    void logWrites(TransactionId tid) throws IOException {
+        ConcurrentSkipListMap<Key, Entry> writes = pending.get(tid);
+        if (writes != null) {
+            Database.getLogFile().logLsmWrites(tid, getId(), writes.entrySet());
+        }
+    }
+
+    /**
+     * Apply tid's writes to the memtable if it committed (its commit record
+     * is durable by now), or drop them if it aborted.
+     */
+    void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+        ConcurrentSkipListMap<Key, Entry> writes = pending.remove(tid);
+        if (writes == null || !commit) {
+            return;
+        }
+        synchronized (this) {
+            load();
+            memtable.putAll(writes);
+            maybeFreeze();
+        }
+    }
+
+    /**
+     * Redo a logged write during recovery. It is held until redoCommit
+     * is called for its transaction, and dropped by undo otherwise.
+     * Writes that are in a run already are harmless to redo: they have
+     * the same key and sequence number as the copy in the run.
+     */
+    synchronized void redo(long tid, long seq, boolean delete, Tuple t) throws IOException {
+        load();
+        ConcurrentSkipListMap<Key, Entry> writes = recovered.get(tid);
+        if (writes == null) {
+            writes = new ConcurrentSkipListMap<Key, Entry>();
+            recovered.put(tid, writes);
+        }
+        t.setRecordId(recordId(seq));
+        writes.put(new Key(t.getField(keyField), seq), new Entry(t, delete));
+        if (seq >= nextSeq.get()) {
+            nextSeq.set(seq + 1);
+        }
+    }
+
+    /** Apply the redone writes of a transaction whose commit record recovery read. */
+    synchronized void redoCommit(long tid) {
+        ConcurrentSkipListMap<Key, Entry> writes = recovered.remove(tid);
+        if (writes != null) {
+            memtable.putAll(writes);
+            maybeFreeze();
+        }
+    }
+
+    /** Drop the redone writes of a transaction that did not commit. */
+    synchronized void undo(long tid) {
+        recovered.remove(tid);
+    }
+
+    //start a new memtable and flush the old one in the background once it is full
+    private void maybeFreeze() {
+        if (memtable.size() < memtableLimit) {
+            return;
+        }
+        freeze();
+        tasks.add(background.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                flushFrozen();
+                return null;
+            }
+        }));
+    }
+
+    private void freeze() {
+        if (memtable.isEmpty()) {
+            return;
+        }
+        List<ConcurrentSkipListMap<Key, Entry>> f = new ArrayList<ConcurrentSkipListMap<Key, Entry>>();
+        f.add(memtable);
+        f.addAll(frozen);
+        frozen = Collections.unmodifiableList(f);
+        memtable = new ConcurrentSkipListMap<Key, Entry>();
+    }
+
+    /**
+     * Write the memtable and all frozen memtables out as runs, and wait
+     * until they are on disk. Used by checkpoints before the log records of
+     * the writes are truncated.
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            load();
+            freeze();
+        }
+        flushFrozen();
+    }
+
+    //write the frozen memtables out as runs, oldest first
+    private void flushFrozen() throws IOException {
+        synchronized (flushLock) {
+            while (true) {
+                ConcurrentSkipListMap<Key, Entry> oldest;
+                int runId;
+                synchronized (this) {
+                    if (frozen.isEmpty()) {
+                        break;
+                    }
+                    oldest = frozen.get(frozen.size() - 1);
+                    runId = nextRunId++;
+                }
+                File run = runFile(runId);
+                long maxSeq = writeRun(run, oldest.entrySet().iterator());
+                synchronized (this) {
+                    List<File> r = new ArrayList<File>();
+                    r.add(run);
+                    r.addAll(runs);
+                    long flushed = Math.max(flushedSeq, maxSeq);
+                    writeManifest(r, flushed);
+                    runs = Collections.unmodifiableList(r);
+                    flushedSeq = flushed;
+                    frozen = Collections.unmodifiableList(
+                            new ArrayList<ConcurrentSkipListMap<Key, Entry>>(frozen.subList(0, frozen.size() - 1)));
+                    if (runs.size() >= COMPACT_RUNS) {
+                        tasks.add(background.submit(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                compact();
+                                return null;
+                            }
+                        }));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge all runs into one, dropping deleted rows and their tombstones.
+     */
+    void compact() throws IOException {
+        synchronized (compactLock) {
+            List<File> merged;
+            int runId;
+            synchronized (this) {
+                load();
+                merged = runs;
+                if (merged.size() < 2) {
+                    return;
+                }
+                runId = nextRunId++;
+            }
+            List<Iterator<Map.Entry<Key, Entry>>> sources = new ArrayList<Iterator<Map.Entry<Key, Entry>>>();
+            List<RunReader> readers = new ArrayList<RunReader>();
+            try {
+                for (File f : merged) {
+                    RunReader r = new RunReader(f);
+                    readers.add(r);
+                    sources.add(r);
+                }
+                File run = runFile(runId);
+                //the oldest run is merged too, so tombstones hide nothing else
+                try {
+                    writeRun(run, new MergeIterator(sources, false));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                synchronized (this) {
+                    //runs flushed meanwhile are newer than the merged run
+                    List<File> r = new ArrayList<File>(runs.subList(0, runs.size() - merged.size()));
+                    r.add(run);
+                    writeManifest(r, flushedSeq);
+                    runs = Collections.unmodifiableList(r);
+                }
+            } finally {
+                for (RunReader r : readers) {
+                    r.close();
+                }
+            }
+            for (File f : merged) {
+                //scans that have the run open keep reading it
+                f.delete();
+            }
+        }
+    }
+
+    /** Wait for the background flushes and compactions started so far. */
+    public void awaitBackground() throws IOException {
+        Future<?> task;
+        //tasks add the compactions they start before finishing
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private File runFile(int id) {
+        return new File(dir, "run-" + id);
+    }
+
+    private File manifestFile() {
+        return new File(dir, "manifest");
+    }
+
+    //read the manifest the first time the file is used; if it can't be
+    //read the file stays unloaded, so a later manifest doesn't drop its runs
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        File m = manifestFile();
+        if (m.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m)));
+            try {
+                int runId = in.readInt();
+                long flushed = in.readLong();
+                int n = in.readInt();
+                List<File> r = new ArrayList<File>(n);
+                for (int i = 0; i < n; i++) {
+                    r.add(runFile(in.readInt()));
+                }
+                nextRunId = runId;
+                flushedSeq = flushed;
+                runs = Collections.unmodifiableList(r);
+                nextSeq.set(flushed + 1);
+            } finally {
+                in.close();
+            }
+        } else {
+            runs = Collections.emptyList();
+        }
+        memtable = new ConcurrentSkipListMap<Key, Entry>();
+        frozen = Collections.emptyList();
+        loaded = true;
+    }
+
+    private void writeManifest(final List<File> runs, final long flushedSeq) throws IOException {
+        Utility.writeAtomically(manifestFile(), out -> {
+            out.writeInt(nextRunId);
+            out.writeLong(flushedSeq);
+            out.writeInt(runs.size());
+            for (File f : runs) {
+                out.writeInt(Integer.parseInt(f.getName().substring("run-".length())));
+            }
+        });
+    }
+
+    /*
+     * A run is a sequence of fixed-size entries in sorted order: the
+     * sequence number, a byte that is 1 for a tombstone, and the tuple's
+     * fields as Field.serialize writes them (zeros for a tombstone, except
+     * the key field).
+     */
+
+    private int entrySize() {
+        return 8 + 1 + td.getSize();
+    }
+
+    //write entries to a new run sequentially and force it; returns the
+    //highest sequence number written
+    private long writeRun(File run, Iterator<Map.Entry<Key, Entry>> entries) throws IOException {
+        dir.mkdirs();
+        long maxSeq = 0;
+        FileOutputStream fos = new FileOutputStream(run);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            byte[] zeros = new byte[td.getSize()];
+            while (entries.hasNext()) {
+                Map.Entry<Key, Entry> e = entries.next();
+                Key k = e.getKey();
+                maxSeq = Math.max(maxSeq, k.seq);
+                out.writeLong(k.seq);
+                out.writeByte(e.getValue().isTombstone() ? 1 : 0);
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (!e.getValue().isTombstone()) {
+                        e.getValue().tuple.getField(i).serialize(out);
+                    } else if (i == keyField) {
+                        k.key.serialize(out);
+                    } else {
+                        out.write(zeros, 0, td.getFieldType(i).getLen());
+                    }
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        return maxSeq;
+    }
+
+    //reads the entries of a run in order
+    private class RunReader implements Iterator<Map.Entry<Key, Entry>> {
+        final DataInputStream in;
+        long remaining;
+
+        RunReader(File run) throws IOException {
+            remaining = run.length() / entrySize();
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        public Map.Entry<Key, Entry> next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+            try {
+                long seq = in.readLong();
+                boolean tombstone = in.readByte() == 1;
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(in));
+                }
+                t.setRecordId(recordId(seq));
+                Key k = new Key(t.getField(keyField), seq);
+                return new AbstractMap.SimpleImmutableEntry<Key, Entry>(k, new Entry(t, tombstone));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (java.text.ParseException e) {
+                throw new UncheckedIOException(new IOException(e));
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                //only read from
+            }
+        }
+    }
+
+    /**
+     * Merges sorted sources, newest first: of entries with the same key
+     * only the newest source's is returned, and tombstones are dropped with
+     * the rows they hide unless keepTombstones is set.
+     */
+    static class MergeIterator implements Iterator<Map.Entry<Key, Entry>> {
+        //the head entry of a source and the source's age (0 is the newest)
+        private static final class Head {
+            final Map.Entry<Key, Entry> entry;
+            final int source;
+
+            Head(Map.Entry<Key, Entry> entry, int source) {
+                this.entry = entry;
+                this.source = source;
+            }
+        }
+
+        final List<Iterator<Map.Entry<Key, Entry>>> sources;
+        final boolean keepTombstones;
+        final PriorityQueue<Head> heads;
+        Map.Entry<Key, Entry> next;
+
+        MergeIterator(List<Iterator<Map.Entry<Key, Entry>>> sources, boolean keepTombstones) {
+            this.sources = sources;
+            this.keepTombstones = keepTombstones;
+            this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+                public int compare(Head a, Head b) {
+                    int c = a.entry.getKey().compareTo(b.entry.getKey());
+                    return c != 0 ? c : Integer.compare(a.source, b.source);
+                }
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                advance(i);
+            }
+            next = fetch();
+        }
+
+        private void advance(int source) {
+            if (sources.get(source).hasNext()) {
+                heads.add(new Head(sources.get(source).next(), source));
+            }
+        }
+
+        private Map.Entry<Key, Entry> fetch() {
+            while (!heads.isEmpty()) {
+                Head h = heads.poll();
+                advance(h.source);
+                //older copies of the same entry are hidden
+                while (!heads.isEmpty() && heads.peek().entry.getKey().compareTo(h.entry.getKey()) == 0) {
+                    advance(heads.poll().source);
+                }
+                if (keepTombstones || !h.entry.getValue().isTombstone()) {
+                    return h.entry;
+                }
+            }
+            return null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<Key, Entry> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<Key, Entry> e = next;
+            next = fetch();
+            return e;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new LsmFileIterator(tid);
+    }
+
+    private class LsmFileIterator extends AbstractDbFileIterator {
+        final TransactionId tid;
+        List<RunReader> readers;
+        MergeIterator merged;
+
+        LsmFileIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            Database.getBufferPool().lockTable(tid, getId(), Permissions.READ_ONLY);
+            List<Iterator<Map.Entry<Key, Entry>>> sources = new ArrayList<Iterator<Map.Entry<Key, Entry>>>();
+            readers = new ArrayList<RunReader>();
+            //the transaction sees its own writes first
+            ConcurrentSkipListMap<Key, Entry> own = pending.get(tid);
+            if (own != null) {
+                sources.add(own.entrySet().iterator());
+            }
+            synchronized (LsmFile.this) {
+                try {
+                    load();
+                    sources.add(memtable.entrySet().iterator());
+                    for (ConcurrentSkipListMap<Key, Entry> f : frozen) {
+                        sources.add(f.entrySet().iterator());
+                    }
+                    //opened now, so a compaction can delete them under us
+                    for (File run : runs) {
+                        RunReader r = new RunReader(run);
+                        readers.add(r);
+                        sources.add(r);
+                    }
+                } catch (IOException e) {
+                    close();
+                    throw new DbException("couldn't open the runs: " + e.getMessage());
+                }
+            }
+            merged = new MergeIterator(sources, false);
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (merged == null || !merged.hasNext()) {
+                return null;
+            }
+            try {
+                return merged.next().getValue().tuple;
+            } catch (UncheckedIOException e) {
+                throw new DbException("couldn't read run: " + e.getCause().getMessage());
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (readers != null) {
+                for (RunReader r : readers) {
+                    r.close();
+                }
+            }
+            readers = null;
+            merged = null;
+        }
+    }
+}
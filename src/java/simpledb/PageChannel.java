@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The FileChannel of a file of pages, opened on first use and shared by all
+ * threads. Positional reads and writes don't move the channel's position,
+ * so no locking is needed. An interrupt during I/O closes the channel for
+ * every thread; the methods here reopen it and retry, and set the
+ * interrupt flag again before they return.
+ *
+ * @see HeapFile
+ * @see SlottedHeapFile
+ */
+class PageChannel {
+
+    private final File f;
+    private volatile FileChannel channel;
+
+    PageChannel(File f) {
+        this.f = f;
+    }
+
+    /**
+     * Returns the shared channel, opening it if needed; with create false,
+     * opening a missing file fails instead of creating it.
+     */
+    FileChannel get(boolean create) throws IOException {
+        FileChannel ch = channel;
+        if (ch != null) {
+            return ch;
+        }
+        synchronized (this) {
+            if (channel == null) {
+                channel = create
+                        ? FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                                StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+                        : FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Drops a channel that was closed under us, unless it was already
+     * replaced, so the next get opens a new one.
+     */
+    synchronized void reopen(FileChannel closed) {
+        if (channel == closed) {
+            channel = null;
+        }
+    }
+
+    /**
+     * Reads into buf, which starts at position 0, from offset until buf is
+     * full or the file ends.
+     *
+     * @return false if the file ended first
+     */
+    boolean read(ByteBuffer buf, long offset) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel ch = get(false);
+                try {
+                    while (buf.hasRemaining()) {
+                        if (ch.read(buf, offset + buf.position()) < 0) {
+                            return false;
+                        }
+                    }
+                    return true;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen(ch);
+                    buf.clear();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writes all of buf, which starts at position 0, at offset.
+     */
+    void write(ByteBuffer buf, long offset) throws IOException {
+        boolean interrupted = false;
+        while (true) {
+            FileChannel ch = get(true);
+            try {
+                while (buf.hasRemaining()) {
+                    ch.write(buf, offset + buf.position());
+                }
+                break;
+            } catch (ClosedChannelException e) {
+                interrupted |= Thread.interrupted();
+                reopen(ch);
+                buf.rewind();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes zeros (empty pages) over [from, to) of the file.
+     */
+    void zero(long from, long to) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+        boolean interrupted = false;
+        long pos = from;
+        while (pos < to) {
+            FileChannel ch = get(true);
+            try {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), to - pos));
+                pos += ch.write(zeros, pos);
+            } catch (ClosedChannelException e) {
+                interrupted |= Thread.interrupted();
+                reopen(ch);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns whether [from, to) of the file holds only zeros; bytes past
+     * the end of the file count as zeros.
+     */
+    boolean allZero(long from, long to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long pos = from;
+        while (pos < to) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), to - pos));
+            int n = get(false).read(buf, pos);
+            if (n < 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) != 0) {
+                    return false;
+                }
+            }
+            pos += n;
+        }
+        return true;
+    }
+
+    /**
+     * Forces the file's contents to disk.
+     */
+    void force() throws IOException {
+        boolean interrupted = false;
+        while (true) {
+            FileChannel ch = get(true);
+            try {
+                ch.force(false);
+                break;
+            } catch (ClosedChannelException e) {
+                interrupted |= Thread.interrupted();
+                reopen(ch);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the channel; it is opened again on the next use.
+     */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -501,10 +503,57 @@ public class Parser {
         }
     }
 
+    // COPY table FROM 'file' [DELIMITER 'c'], which Zql doesn't parse
+    static final Pattern COPY_STATEMENT = Pattern.compile(
+            "\\s*copy\\s+(\\w+)\\s+from\\s+'([^']*)'(?:\\s+delimiter\\s+'(.)')?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    public Query handleCopyStatement(String s, TransactionId tId)
+            throws simpledb.ParsingException {
+        Matcher m = COPY_STATEMENT.matcher(s);
+        if (!m.matches())
+            throw new simpledb.ParsingException("Expected COPY table FROM 'file' [DELIMITER 'c'] : " + s.trim());
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(m.group(1));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : "
+                    + m.group(1));
+        }
+        char separator = m.group(3) == null ? ',' : m.group(3).charAt(0);
+        Query copyQ = new Query(tId);
+        copyQ.setPhysicalPlan(new BulkLoad(tId, new File(m.group(2)), tableId, separator));
+        return copyQ;
+    }
+
+    // the whole statement if it is a COPY, otherwise null with the stream
+    // reset to the start of the statement
+    private static String readCopyStatement(InputStream is) throws IOException {
+        is.mark(64);
+        byte[] start = new byte[64];
+        int n = 0;
+        int c;
+        while (n < start.length && (c = is.read()) >= 0)
+            start[n++] = (byte) c;
+        is.reset();
+        if (!new String(start, 0, n, "UTF-8").matches("(?is)\\s*copy\\s.*"))
+            return null;
+        ByteArrayOutputStream statement = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        while ((n = is.read(buf)) >= 0)
+            statement.write(buf, 0, n);
+        return statement.toString("UTF-8");
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            is = new BufferedInputStream(is);
+            String copy = readCopyStatement(is);
+            ZStatement s = null;
+            if (copy == null) {
+                ZqlParser p = new ZqlParser(is);
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +566,9 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (copy != null)
+                        query = handleCopyStatement(copy, curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -530,7 +581,7 @@ public class Parser {
                         System.out
                                 .println("Can't parse "
                                         + s
-                                        + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
+                                        + "\n -- parser only handles SQL transactions, insert, delete, select, and copy statements");
                     }
                     if (query != null)
                         query.execute();
@@ -581,7 +632,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "copy" };
 
     public static void main(String argv[]) throws IOException {
 
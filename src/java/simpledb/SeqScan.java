@@ -16,8 +16,12 @@ public class SeqScan implements OpIterator {
     TransactionId tranId;
     int tblId;
     String tblAlias;
-    //change HeapFile to DbFile????
-    HeapFile f;
+    //any DbFile, not just HeapFile, so other file formats can be scanned
+    DbFile f;
+    //the fields scanned, null for all of them
+    int[] fields;
+    //the TupleDesc of the projected tuples SeqScan builds itself
+    TupleDesc projected;
     DbFileIterator itr;
     //use 'open' variable like in HeapFileIterator
     boolean opened = false;
@@ -43,7 +47,7 @@ public class SeqScan implements OpIterator {
         this.tblId = tableid;
         this.tblAlias = tableAlias;
         //reads each tuple of a table, so it needs to have a DbFile and a DbFile iterator
-        this.f = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.f = Database.getCatalog().getDatabaseFile(tableid);
     }
 
     /**
@@ -83,6 +87,20 @@ public class SeqScan implements OpIterator {
         this.tblAlias = tableAlias;
     }
 
+    /**
+     * Creates a sequential scan that only returns the given fields of the
+     * table, in that order. A HeapFile never decodes the other fields, and a
+     * ColumnFile never reads them, so scans of a few columns of a wide table
+     * do much less work.
+     *
+     * @param fields
+     *            the indexes of the fields scanned in the table's TupleDesc
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
+        this(tid, tableid, tableAlias);
+        this.fields = fields.clone();
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
@@ -91,7 +109,14 @@ public class SeqScan implements OpIterator {
         //'open' means we want to start iterating through a DbFile
         //this means we need to instantiate our DbFileitr here
             //*** Per spec, need to use HeapFile NOT DbFile
-        itr = f.iterator(this.tranId);
+        if (fields != null && f instanceof HeapFile) {
+            itr = ((HeapFile) f).iterator(this.tranId, fields);
+        } else if (fields != null && f instanceof ColumnFile) {
+            itr = ((ColumnFile) f).iterator(this.tranId, fields, null);
+        } else {
+            itr = f.iterator(this.tranId);
+            projected = fields == null ? null : getTupleDesc();
+        }
         itr.open();
         opened = true;
     }
@@ -114,11 +139,14 @@ public class SeqScan implements OpIterator {
         //Each tupleDesc has fieldName / FieldType so need to make two arrays because need
         //to separate name from type so can concatenate tableAlias to each name and then
         //rejoin the new Alias.FieldName / FieldType --> call TupleDesc constructor!
-        String[] names = new String[td.numFields()];
-        Type[] types = new Type[td.numFields()];
+        int numFields = fields == null ? td.numFields() : fields.length;
+        String[] names = new String[numFields];
+        Type[] types = new Type[numFields];
         for(int i = 0; i < names.length; i++){
-            String n = td.getFieldName(i);
-            Type t = td.getFieldType(i);
+            //a projected scan only has its fields
+            int field = fields == null ? i : fields[i];
+            String n = td.getFieldName(field);
+            Type t = td.getFieldType(field);
             names[i] = tblAlias + "." + n;
             types[i] = t;
         }
@@ -134,7 +162,17 @@ public class SeqScan implements OpIterator {
         if(itr == null){
             throw new NoSuchElementException();
         }
-        return this.itr.next();
+        Tuple t = this.itr.next();
+        if (projected != null) {
+            //other files return whole tuples, so project them here
+            Tuple pt = new Tuple(projected);
+            pt.setRecordId(t.getRecordId());
+            for (int i = 0; i < fields.length; i++) {
+                pt.setField(i, t.getField(fields[i]));
+            }
+            return pt;
+        }
+        return t;
     }
 
     public void close() {
@@ -0,0 +1,239 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedHeapFile is a DbFile that stores tuples in no particular order,
+ * like HeapFile, but on SlottedHeapPages: records only take the bytes of
+ * their values, so tables with short strings fit many more tuples per page
+ * than the fixed-size slots of a HeapPage allow. The format of the pages is
+ * described in SlottedHeapPage.
+ * <p>
+ * Inserts find a page with room through a FreeSpaceMap whose entries count
+ * free bytes in units of {@link #freeSpaceUnit}.
+ *
+ * @see SlottedHeapPage
+ * @see Catalog#loadSchema
+ */
+public class SlottedHeapFile implements DbFile {
+
+    final TupleDesc td;
+    final File f;
+    //opened on first use and shared by all threads
+    private final PageChannel channel;
+    //which pages have room for inserts, saved next to the file
+    private final FreeSpaceMap freeSpace;
+    //logical end of the file and the preallocated extent past it
+    private final HighWaterMark highWater;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+        this.channel = new PageChannel(f);
+        this.freeSpace = new FreeSpaceMap(FreeSpaceMap.sideFile(f));
+        this.highWater = new HighWaterMark(f, channel, freeSpace);
+    }
+
+    public File getFile() {
+        return f;
+    }
+
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this file: the hash of its absolute
+     * file name, as for HeapFile.
+     */
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the bytes one free space map unit stands for, so a whole page fits */
+    static int freeSpaceUnit() {
+        return (BufferPool.getPageSize() + FreeSpaceMap.MAX_TRACKED - 1) / FreeSpaceMap.MAX_TRACKED;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) throws IllegalArgumentException {
+        try {
+            long offset = (long) BufferPool.getPageSize() * pid.getPageNumber();
+            ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+            //preallocated pages are in the file, so this only fails for a
+            //page that was never allocated
+            if (!channel.read(buf, offset)) {
+                throw new IllegalArgumentException("Page " + pid.getPageNumber() + " is past the end of the file.");
+            }
+            SlottedHeapPage page = new SlottedHeapPage((HeapPageId) pid, buf.array());
+            freeSpace.update(pid.getPageNumber(), page.getFreeSpace() / freeSpaceUnit());
+            return page;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("couldn't read page " + pid.getPageNumber(), e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        int pgNo = page.getId().getPageNumber();
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        ((SlottedHeapPage) page).writeTo(buf);
+        buf.flip();
+        //known before the file grows
+        int pages = numPages();
+        channel.write(buf, (long) BufferPool.getPageSize() * pgNo);
+        freeSpace.update(pgNo, ((SlottedHeapPage) page).getFreeSpace() / freeSpaceUnit());
+        if (pgNo >= pages) {
+            //a page written past the mark, e.g. by recovery
+            highWater.written(pgNo);
+        }
+        freeSpace.saveIfDue();
+    }
+
+    /**
+     * Closes the file channel, and saves and closes the free space map;
+     * they are opened again on the next read or write.
+     */
+    public void close() throws IOException {
+        channel.close();
+        freeSpace.close();
+    }
+
+    /**
+     * Returns the number of pages in this file: the high-water mark, not
+     * counting pages preallocated past it, as for HeapFile.
+     */
+    public int numPages() {
+        return highWater.numPages();
+    }
+
+    /**
+     * Set how many pages the file grows by when an insert needs a page past
+     * its end, as for HeapFile.
+     */
+    public void setExtentPages(int pages) {
+        highWater.setExtentPages(pages);
+    }
+
+    public int getExtentPages() {
+        return highWater.getExtentPages();
+    }
+
+    //add an empty page at the high-water mark, out of the preallocated extent
+    private int allocatePage() throws IOException {
+        int pageNo = highWater.allocatePage();
+        freeSpace.update(pageNo, FreeSpaceMap.MAX_TRACKED);
+        return pageNo;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("The tupleDesc's dont match.");
+        }
+        ArrayList<Page> pages = new ArrayList<Page>();
+        int unit = freeSpaceUnit();
+        //enough for the record and a new directory entry
+        int needed = (SlottedHeapPage.recordSize(t) + SlottedHeapPage.SLOT_BYTES + unit - 1) / unit;
+        for (int i = freeSpace.nextCandidate(0, numPages(), needed); i >= 0;
+                i = freeSpace.nextCandidate(i + 1, numPages(), needed)) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.getFreeSpace() >= page.spaceNeeded(t)) {
+                page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                page.insertTuple(t);
+                freeSpace.update(i, page.getFreeSpace() / unit);
+                pages.add(page);
+                return pages;
+            }
+            //the map was stale
+            freeSpace.update(i, page.getFreeSpace() / unit);
+            if (Database.getBufferPool().holdsLock(tid, pid)) {
+                Database.getBufferPool().releasePage(tid, pid);
+            }
+        }
+
+        HeapPageId pid = new HeapPageId(getId(), allocatePage());
+        SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        freeSpace.update(pid.getPageNumber(), page.getFreeSpace() / unit);
+        //dirty right away so it can't be evicted as a clean page
+        page.markDirty(true, tid);
+        pages.add(page);
+        return pages;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("The tuple does not exists on this page/file.");
+        }
+        ArrayList<Page> pages = new ArrayList<Page>();
+        SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        freeSpace.update(rid.getPageId().getPageNumber(), page.getFreeSpace() / freeSpaceUnit());
+        pages.add(page);
+        return pages;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new SlottedHeapFileIterator(tid);
+    }
+
+    private class SlottedHeapFileIterator extends AbstractDbFileIterator {
+        final TransactionId tid;
+        Iterator<Tuple> pageTuples;
+        int currentPage;
+        //frames a scan of a large file recycles, null for small files
+        BufferPool.ScanRing ring;
+
+        SlottedHeapFileIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            currentPage = -1;
+            ring = Database.getBufferPool().scanRing(numPages());
+            pageTuples = Collections.<Tuple>emptyIterator();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (pageTuples == null) {
+                return null;
+            }
+            while (!pageTuples.hasNext()) {
+                if (++currentPage >= numPages()) {
+                    return null;
+                }
+                HeapPageId pid = new HeapPageId(getId(), currentPage);
+                pageTuples = ((SlottedHeapPage) Database.getBufferPool()
+                        .getPage(tid, pid, Permissions.READ_ONLY, ring)).iterator();
+            }
+            return pageTuples.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            pageTuples = null;
+            ring = null;
+        }
+    }
+}
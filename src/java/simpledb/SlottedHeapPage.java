@@ -0,0 +1,420 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * SlottedHeapPage stores the tuples of a SlottedHeapFile as variable-length
+ * records, so a string takes the bytes of its value instead of the
+ * Type.STRING_LEN bytes a HeapPage slot reserves for it.
+ * <p>
+ * The page starts with a 4-byte header: the number of slot directory
+ * entries and the offset where the record area starts, both unsigned
+ * shorts. The slot directory follows, one entry of two unsigned shorts per
+ * slot: the offset of the slot's record and its length, with offset 0 for
+ * an empty slot. Records are packed at the end of the page and grow down
+ * towards the directory. An all-zero page is an empty page.
+ * <p>
+ * A record holds its fields one after the other: an INT as 4 bytes, a
+ * STRING as its length in an unsigned short followed by its bytes.
+ * <p>
+ * Deleting a record leaves a hole in the record area; when an insert does
+ * not fit in the space between the directory and the records, the records
+ * are moved together to reclaim the holes. Records keep their slot, so a
+ * RecordId stays valid when the page is compacted.
+ *
+ * @see SlottedHeapFile
+ */
+public class SlottedHeapPage implements Page {
+
+    /** Bytes before the slot directory. */
+    static final int HEADER_BYTES = 4;
+    /** Bytes of one slot directory entry. */
+    static final int SLOT_BYTES = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int pageSize;
+    //the page as stored on disk; tuples are decoded from it when asked for
+    byte data[];
+    //set while an iterator or the before image may still read data; the
+    //next change copies it
+    private boolean dataShared;
+    private int numSlots;
+    //start of the record area
+    private int recordStart;
+    //bytes of the record area taken by live records; the rest are holes
+    private int liveBytes;
+    boolean dirty;
+    TransactionId tranIdDirty;
+
+    //the before image, captured by the first change after setBeforeImage;
+    //null while the page is unchanged and the before image is the page itself
+    byte[] oldData;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk,
+     * in the format described above.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = BufferPool.getPageSize();
+        //the caller may reuse its array
+        this.data = Arrays.copyOf(data, pageSize);
+        this.numSlots = getShort(data, 0);
+        this.recordStart = getShort(data, 2);
+        if (recordStart == 0) {
+            //a new page
+            recordStart = pageSize;
+        }
+        if (HEADER_BYTES + numSlots * SLOT_BYTES > recordStart || recordStart > pageSize) {
+            throw new IOException("corrupt slotted page " + id.getPageNumber());
+        }
+        for (int i = 0; i < numSlots; i++) {
+            liveBytes += slotLength(i);
+        }
+        setBeforeImage();
+    }
+
+    private static int getShort(byte[] d, int off) {
+        return ((d[off] & 0xff) << 8) | (d[off + 1] & 0xff);
+    }
+
+    private void putShort(int off, int v) {
+        data[off] = (byte) (v >>> 8);
+        data[off + 1] = (byte) v;
+    }
+
+    private int slotOffset(int slot) {
+        return getShort(data, HEADER_BYTES + slot * SLOT_BYTES);
+    }
+
+    private int slotLength(int slot) {
+        return getShort(data, HEADER_BYTES + slot * SLOT_BYTES + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        putShort(HEADER_BYTES + slot * SLOT_BYTES, offset);
+        putShort(HEADER_BYTES + slot * SLOT_BYTES + 2, length);
+    }
+
+    private void setHeader() {
+        putShort(0, numSlots);
+        //the end of a 64KB page doesn't fit; it is the same as a new page
+        putShort(2, recordStart == pageSize ? 0 : recordStart);
+    }
+
+    /** @return the number of bytes t takes as a record */
+    static int recordSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                size += 4;
+            } else {
+                size += 2 + Math.min(((StringField) t.getField(i)).getValue().length(), Type.STRING_LEN);
+            }
+        }
+        return size;
+    }
+
+    //write t as a record at off, returning the offset after it
+    private static int encodeRecord(Tuple t, byte[] d, int off) {
+        TupleDesc td = t.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                int v = ((IntField) t.getField(i)).getValue();
+                d[off++] = (byte) (v >>> 24);
+                d[off++] = (byte) (v >>> 16);
+                d[off++] = (byte) (v >>> 8);
+                d[off++] = (byte) v;
+            } else {
+                String s = ((StringField) t.getField(i)).getValue();
+                int len = Math.min(s.length(), Type.STRING_LEN);
+                d[off++] = (byte) (len >>> 8);
+                d[off++] = (byte) len;
+                //one byte per char, like StringField.serialize
+                for (int j = 0; j < len; j++) {
+                    d[off++] = (byte) s.charAt(j);
+                }
+            }
+        }
+        return off;
+    }
+
+    //decode the record of a used slot of a page image
+    private Tuple decodeRecord(byte[] d, int slot, int off) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                t.setField(i, new IntField((d[off] << 24) | ((d[off + 1] & 0xff) << 16)
+                        | ((d[off + 2] & 0xff) << 8) | (d[off + 3] & 0xff)));
+                off += 4;
+            } else {
+                int len = getShort(d, off);
+                t.setField(i, new StringField(new String(d, off + 2, len, StandardCharsets.ISO_8859_1),
+                        Type.STRING_LEN));
+                off += 2 + len;
+            }
+        }
+        return t;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public synchronized SlottedHeapPage getBeforeImage() {
+        try {
+            return new SlottedHeapPage(pid, oldData != null ? oldData : data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Make the current contents the before image. Nothing is copied until
+     * the page next changes.
+     */
+    public synchronized void setBeforeImage() {
+        oldData = null;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    //called before each change to the contents; the first change after
+    //setBeforeImage keeps the current bytes as the before image
+    private void beforeChange() {
+        if (oldData == null) {
+            oldData = data;
+            dataShared = true;
+        }
+        if (dataShared) {
+            data = data.clone();
+            dataShared = false;
+        }
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, which
+     * the constructor turns back into an identical page.
+     */
+    public synchronized byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * Copies the bytes of this page into buf, like getPageData but without
+     * allocating an array. Used to write the page to disk.
+     */
+    public synchronized void writeTo(java.nio.ByteBuffer buf) {
+        buf.put(data);
+    }
+
+    /**
+     * Returns the tuple in a slot, decoded from the page bytes, or null if
+     * the slot is empty.
+     */
+    public synchronized Tuple getTuple(int slot) {
+        if (!isSlotUsed(slot)) {
+            return null;
+        }
+        return decodeRecord(data, slot, slotOffset(slot));
+    }
+
+    /**
+     * Returns true if the slot holds a record.
+     */
+    public synchronized boolean isSlotUsed(int slot) {
+        return slot >= 0 && slot < numSlots && slotOffset(slot) != 0;
+    }
+
+    /**
+     * Returns the number of slot directory entries, used or not.
+     */
+    public synchronized int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Returns the number of bytes free for records and directory entries,
+     * counting the holes a compaction would reclaim.
+     */
+    public synchronized int getFreeSpace() {
+        return pageSize - HEADER_BYTES - numSlots * SLOT_BYTES - liveBytes;
+    }
+
+    //the slot an insert uses: the first empty one, or a new one at the end
+    private int freeSlot() {
+        for (int i = 0; i < numSlots; i++) {
+            if (slotOffset(i) == 0) {
+                return i;
+            }
+        }
+        return numSlots;
+    }
+
+    /**
+     * Returns the bytes inserting t takes on this page: its record and, if
+     * no directory entry is free, a new one.
+     */
+    public synchronized int spaceNeeded(Tuple t) {
+        return recordSize(t) + (freeSlot() == numSlots ? SLOT_BYTES : 0);
+    }
+
+    /**
+     * Adds the specified tuple to the page, compacting the records first if
+     * it only fits in the holes; the tuple's RecordId is set to its slot.
+     * @throws DbException if the page has no room for the tuple or the
+     *         tupledesc is mismatch.
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("The tupleDesc doesnt match.");
+        }
+        int len = recordSize(t);
+        int slot = freeSlot();
+        int dirEnd = HEADER_BYTES + (Math.max(slot + 1, numSlots)) * SLOT_BYTES;
+        if (dirEnd + len + liveBytes > pageSize) {
+            throw new DbException("There is no room on the page for the tuple.");
+        }
+        beforeChange();
+        if (dirEnd + len > recordStart) {
+            compact();
+        }
+        recordStart -= len;
+        encodeRecord(t, data, recordStart);
+        setSlot(slot, recordStart, len);
+        liveBytes += len;
+        if (slot == numSlots) {
+            numSlots++;
+        }
+        setHeader();
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page. Its bytes become a hole the
+     * next compaction reclaims.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid) || !isSlotUsed(rid.getTupleNumber())) {
+            throw new DbException("The tuple is not on the page.");
+        }
+        beforeChange();
+        int slot = rid.getTupleNumber();
+        int off = slotOffset(slot);
+        int len = slotLength(slot);
+        //deleted rows don't linger on disk
+        Arrays.fill(data, off, off + len, (byte) 0);
+        if (off == recordStart) {
+            recordStart += len;
+        }
+        liveBytes -= len;
+        setSlot(slot, 0, 0);
+        //empty entries at the end of the directory are given back
+        while (numSlots > 0 && slotOffset(numSlots - 1) == 0) {
+            numSlots--;
+            setSlot(numSlots, 0, 0);
+        }
+        if (liveBytes == 0) {
+            recordStart = pageSize;
+        }
+        setHeader();
+    }
+
+    //move the records to the end of the page, highest offset first, so
+    //each one only moves up and the holes end up below the records
+    private void compact() {
+        long[] byOffset = new long[numSlots];
+        int n = 0;
+        for (int i = 0; i < numSlots; i++) {
+            int off = slotOffset(i);
+            if (off != 0) {
+                byOffset[n++] = (long) off << 32 | i;
+            }
+        }
+        Arrays.sort(byOffset, 0, n);
+        int pos = pageSize;
+        for (int k = n - 1; k >= 0; k--) {
+            int slot = (int) byOffset[k];
+            int off = (int) (byOffset[k] >>> 32);
+            int len = slotLength(slot);
+            pos -= len;
+            System.arraycopy(data, off, data, pos, len);
+            setSlot(slot, pos, len);
+        }
+        Arrays.fill(data, recordStart, pos, (byte) 0);
+        recordStart = pos;
+        setHeader();
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        if (dirty) {
+            tranIdDirty = tid;
+        }
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return dirty ? tranIdDirty : null;
+    }
+
+    /**
+     * @return an iterator over the tuples on this page, in slot order, as
+     * they were when it was created (calling remove on this iterator throws
+     * an UnsupportedOperationException)
+     */
+    public synchronized Iterator<Tuple> iterator() {
+        //later changes copy the bytes instead of changing them under us
+        dataShared = true;
+        final byte[] snapshot = data;
+        final int slots = numSlots;
+        return new Iterator<Tuple>() {
+            int slot = nextUsed(0);
+
+            private int nextUsed(int from) {
+                while (from < slots && getShort(snapshot, HEADER_BYTES + from * SLOT_BYTES) == 0) {
+                    from++;
+                }
+                return from;
+            }
+
+            public boolean hasNext() {
+                return slot < slots;
+            }
+
+            public Tuple next() {
+                if (slot >= slots) {
+                    throw new NoSuchElementException();
+                }
+                int i = slot;
+                slot = nextUsed(i + 1);
+                return decodeRecord(snapshot, i, getShort(snapshot, HEADER_BYTES + i * SLOT_BYTES));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
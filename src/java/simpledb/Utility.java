@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.UUID;
 
@@ -103,6 +105,7 @@ public class Utility {
     public static HeapFile createEmptyHeapFile(String path, int cols)
         throws IOException {
         File f = new File(path);
+        FreeSpaceMap.discard(f);
         // touch the file
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
@@ -158,5 +161,30 @@ public class Utility {
         }
         return out;
     }
+
+    /** Writes the contents of a file for writeAtomically. */
+    interface FileContents {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a new version of f: the contents go to f.tmp, which is forced
+     * to disk and then moved over f, so readers see either the old file or
+     * all of the new one, even after a crash.
+     */
+    static void writeAtomically(File f, FileContents contents) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            contents.writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
 }
 
@@ -1,8 +1,6 @@
 package simpledb;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -34,13 +32,11 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     			throws DbException, IOException, TransactionAbortedException {
     		ArrayList<Page> dirtypages = new ArrayList<Page>();
     		for(int i = 0; i < duplicates; i++) {
-    			// create a blank page
-    			BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(super.getFile(), true));
-                byte[] emptyData = HeapPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1), 
-    					HeapPage.createEmptyPageData());
+    			// create a blank page; written through writePage, since
+    			// numPages() doesn't see pages appended behind the HeapFile
+    			HeapPageId pid = new HeapPageId(super.getId(), super.numPages());
+    			super.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+    			HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
     	        p.insertTuple(t);
     			dirtypages.add(p);
     		}
@@ -133,6 +129,100 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A partitioned pool never holds more pages than it was given, even when
+     * a scan touches many more pages than fit.
+     */
+    @Test public void partitionedPoolCapacity() throws Exception {
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+    	FreeSpaceMap.sideFile(hf.getFile()).deleteOnExit();
+    	BufferPool bp = Database.resetBufferPool(4, 2, new ClockEvictionPolicy());
+
+    	DbFileIterator it = hf.iterator(tid);
+    	it.open();
+    	int count = 0;
+    	while(it.hasNext()) {
+    		it.next();
+    		count++;
+    		assertTrue(bp.bp.size() <= 4);
+    	}
+    	assertEquals(504*10, count);
+    }
+
+    /**
+     * transactionComplete only visits the pages the transaction dirtied, not
+     * every page in the pool.
+     */
+    @Test public void completionVisitsDirtiedPages() throws Exception {
+    	HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+    	FreeSpaceMap.sideFile(hf.getFile()).deleteOnExit();
+    	BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    	// fill the pool with clean pages
+    	DbFileIterator it = hf.iterator(tid);
+    	it.open();
+    	while(it.hasNext()) {
+    		it.next();
+    	}
+    	it.close();
+    	bp.transactionComplete(tid);
+
+    	TransactionId writer = new TransactionId();
+    	bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(1, 2));
+    	bp.transactionComplete(writer);
+    	assertEquals(1, bp.getLastCompletionPagesVisited());
+    }
+
+    /**
+     * Two transactions insert into the same page of a row-locked table
+     * without waiting for each other, and an abort only undoes its own row.
+     */
+    @Test public void rowLockedWriters() throws Exception {
+    	final BufferPool bp = Database.getBufferPool();
+    	bp.setRowLocking(empty.getId(), true);
+    	final TransactionId tid2 = new TransactionId();
+    	bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+
+    	final Exception[] error = new Exception[1];
+    	Thread t = new Thread() {
+    		public void run() {
+    			try {
+    				bp.insertTuple(tid2, empty.getId(), Utility.getHeapTuple(2, 2));
+    			} catch (Exception e) {
+    				error[0] = e;
+    			}
+    		}
+    	};
+    	t.start();
+    	t.join(1000);
+    	assertFalse(t.isAlive());
+    	assertNull(error[0]);
+    	assertEquals(1, empty.numPages());
+    	HeapPage p = (HeapPage) bp.getRowPage(tid, new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+    	assertEquals(504 - 2, p.getNumEmptySlots());
+
+    	// other transactions only see committed rows
+    	TransactionId reader = new TransactionId();
+    	assertEquals(0, countTuples(empty, reader));
+    	bp.transactionComplete(tid2, false);
+    	bp.transactionComplete(tid);
+    	assertEquals(1, countTuples(empty, reader));
+    	bp.transactionComplete(reader);
+    	assertEquals(504 - 1, p.getNumEmptySlots());
+    }
+
+    private static int countTuples(DbFile f, TransactionId tid) throws Exception {
+    	DbFileIterator it = f.iterator(tid);
+    	it.open();
+    	int count = 0;
+    	while(it.hasNext()) {
+    		it.next();
+    		count++;
+    	}
+    	it.close();
+    	return count;
+    }
+
     /**
      * JUnit suite target
      */
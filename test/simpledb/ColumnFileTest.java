@@ -0,0 +1,220 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ColumnFileTest extends SimpleDbTestBase {
+
+    private TupleDesc td;
+    private ColumnFile cf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void createFile() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "id", "bucket", "name" });
+        File dir = File.createTempFile("columns", "");
+        dir.delete();
+        dir.deleteOnExit();
+        for (String name : new String[] { "c0", "c1", "c2", "meta", "meta.tmp" }) {
+            new File(dir, name).deleteOnExit();
+        }
+        cf = new ColumnFile(dir, td);
+        cf.setGroupRows(100);
+        Database.getCatalog().addTable(cf, SystemTestUtil.getUUID());
+    }
+
+    private List<Tuple> rows(int from, int to) {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (int i = from; i < to; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(i % 7));
+            t.setField(2, new StringField("name" + (i % 5), Type.STRING_LEN));
+            rows.add(t);
+        }
+        return rows;
+    }
+
+    /**
+     * Each kind of segment picks the encoding that suits it and decodes back
+     * to the same values
+     */
+    @Test public void encodings() throws Exception {
+        int n = 1000;
+        int[] sorted = new int[n];
+        int[] few = new int[n];
+        int[] wide = new int[n];
+        String[] names = new String[n];
+        String[] unique = new String[n];
+        Random r = new Random(1);
+        for (int i = 0; i < n; i++) {
+            sorted[i] = i / 100;
+            few[i] = r.nextInt(3) * 1000000;
+            wide[i] = r.nextInt();
+            names[i] = "name" + r.nextInt(4);
+            unique[i] = "u" + i;
+        }
+        byte[] b = ColumnSegment.encodeInts(sorted, n);
+        assertEquals(ColumnSegment.RUN_LENGTH, b[0]);
+        assertArrayEquals(sorted, ColumnSegment.decodeInts(ByteBuffer.wrap(b), n));
+        b = ColumnSegment.encodeInts(few, n);
+        assertEquals(ColumnSegment.DICTIONARY, b[0]);
+        assertArrayEquals(few, ColumnSegment.decodeInts(ByteBuffer.wrap(b), n));
+        b = ColumnSegment.encodeInts(wide, n);
+        assertEquals(ColumnSegment.BIT_PACKED, b[0]);
+        assertArrayEquals(wide, ColumnSegment.decodeInts(ByteBuffer.wrap(b), n));
+        b = ColumnSegment.encodeStrings(names, n);
+        assertEquals(ColumnSegment.DICTIONARY, b[0]);
+        assertArrayEquals(names, ColumnSegment.decodeStrings(ByteBuffer.wrap(b), n));
+        b = ColumnSegment.encodeStrings(unique, n);
+        assertEquals(ColumnSegment.PLAIN, b[0]);
+        assertArrayEquals(unique, ColumnSegment.decodeStrings(ByteBuffer.wrap(b), n));
+    }
+
+    /**
+     * Loaded rows come back through SeqScan, and a ColumnScan returns just
+     * its columns of the rows its filter accepts
+     */
+    @Test public void loadAndScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(1000, cf.bulkLoad(tid, rows(0, 1000).iterator()));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(10, cf.numGroups());
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, cf.getId(), "t");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(new IntField(count), t.getField(0));
+            assertEquals(new StringField("name" + (count % 5), Type.STRING_LEN), t.getField(2));
+            count++;
+        }
+        scan.close();
+        assertEquals(1000, count);
+
+        ColumnScan cs = new ColumnScan(tid, cf.getId(), "t", new int[] { 2, 1 },
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(950)));
+        assertEquals("t.name", cs.getTupleDesc().getFieldName(0));
+        cs.open();
+        count = 0;
+        while (cs.hasNext()) {
+            Tuple t = cs.next();
+            assertEquals(2, t.getTupleDesc().numFields());
+            assertEquals(new IntField((950 + count) % 7), t.getField(1));
+            count++;
+        }
+        cs.close();
+        assertEquals(50, count);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // a new ColumnFile over the same directory sees the same rows
+        ColumnFile reopened = new ColumnFile(cf.getDirectory(), td);
+        assertEquals(1000, reopened.numRows());
+    }
+
+    /**
+     * Groups whose minimum and maximum rule the filter out are skipped
+     */
+    @Test public void minMax() throws Exception {
+        TransactionId tid = new TransactionId();
+        cf.bulkLoad(tid, rows(0, 300).iterator());
+        Database.getBufferPool().transactionComplete(tid);
+        List<ColumnFile.RowGroup> groups = cf.groups();
+        assertEquals(100, groups.get(1).mins[0]);
+        assertEquals(199, groups.get(1).maxs[0]);
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100));
+        assertEquals(true, cf.mayMatch(groups.get(0), p));
+        assertEquals(false, cf.mayMatch(groups.get(1), p));
+        p = new Predicate(1, Predicate.Op.EQUALS, new IntField(9));
+        assertEquals(false, cf.mayMatch(groups.get(2), p));
+    }
+
+    /**
+     * An aborted load is dropped, and the next load reuses its space
+     */
+    @Test public void abortedLoad() throws Exception {
+        TransactionId tid = new TransactionId();
+        cf.bulkLoad(tid, rows(0, 150).iterator());
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        cf.bulkLoad(tid, rows(150, 400).iterator());
+        assertEquals(400, cf.numRows());
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(150, cf.numRows());
+        assertEquals(2, cf.numGroups());
+
+        tid = new TransactionId();
+        cf.bulkLoad(tid, rows(150, 200).iterator());
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        DbFileIterator it = cf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(count), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(200, count);
+    }
+
+    /**
+     * A metadata file that can't be read fails loads with an IOException
+     * and scans with a DbException
+     */
+    @Test public void unreadableMetadata() throws Exception {
+        cf.getDirectory().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(cf.getDirectory(), "meta")));
+        // no row groups, but the wrong number of columns
+        out.writeInt(0);
+        out.writeInt(td.numFields() + 1);
+        out.close();
+
+        TransactionId tid = new TransactionId();
+        try {
+            cf.bulkLoad(tid, rows(0, 10).iterator());
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        DbFileIterator it = cf.iterator(tid);
+        try {
+            it.open();
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private HashMap<PageId, Page> frames;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        frames = new HashMap<PageId, Page>();
+    }
+
+    private HeapPageId load(EvictionPolicy policy, int pgNo) throws Exception {
+        HeapPageId pid = new HeapPageId(-1, pgNo);
+        frames.put(pid, new HeapPage(pid, HeapPage.createEmptyPageData()));
+        policy.recordAccess(pid);
+        return pid;
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance
+     */
+    @Test public void clockSecondChance() throws Exception {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        HeapPageId p0 = load(policy, 0);
+        HeapPageId p1 = load(policy, 1);
+        HeapPageId p2 = load(policy, 2);
+
+        // first sweep clears every bit, then p0 is the first with a clear bit
+        assertEquals(p0, policy.chooseVictim(frames));
+        policy.remove(p0);
+        frames.remove(p0);
+
+        // p1 is referenced again, so p2 goes before it
+        policy.recordAccess(p1);
+        assertEquals(p2, policy.chooseVictim(frames));
+    }
+
+    /**
+     * Both policies skip dirty pages while a clean one exists
+     */
+    @Test public void skipDirty() throws Exception {
+        EvictionPolicy[] policies = { new ClockEvictionPolicy(), new LruKEvictionPolicy() };
+        for (EvictionPolicy policy : policies) {
+            frames.clear();
+            HeapPageId p0 = load(policy, 0);
+            HeapPageId p1 = load(policy, 1);
+            frames.get(p0).markDirty(true, new TransactionId());
+            assertEquals(p1, policy.chooseVictim(frames));
+
+            // once everything is dirty a dirty page has to go
+            frames.get(p1).markDirty(true, new TransactionId());
+            policy.remove(p1);
+            frames.remove(p1);
+            assertEquals(p0, policy.chooseVictim(frames));
+
+            policy.remove(p0);
+            assertNull(policy.chooseVictim(frames));
+        }
+    }
+
+    /**
+     * LRU-2 evicts pages seen once before pages seen twice, even if the
+     * single-reference page was touched more recently
+     */
+    @Test public void lruKHistory() throws Exception {
+        EvictionPolicy policy = new LruKEvictionPolicy(2);
+        HeapPageId hot = load(policy, 0);
+        policy.recordAccess(hot);
+        HeapPageId scanned1 = load(policy, 1);
+        HeapPageId scanned2 = load(policy, 2);
+
+        assertEquals(scanned1, policy.chooseVictim(frames));
+        policy.remove(scanned1);
+        assertEquals(scanned2, policy.chooseVictim(frames));
+        policy.remove(scanned2);
+        assertEquals(hot, policy.chooseVictim(frames));
+    }
+
+    /**
+     * A page recorded again after it left the pool is never the victim
+     */
+    @Test public void skipEvicted() throws Exception {
+        EvictionPolicy[] policies = { new ClockEvictionPolicy(), new LruKEvictionPolicy() };
+        for (EvictionPolicy policy : policies) {
+            frames.clear();
+            HeapPageId p0 = load(policy, 0);
+            HeapPageId p1 = load(policy, 1);
+            policy.remove(p0);
+            frames.remove(p0);
+            // a hit that raced with the eviction
+            policy.recordAccess(p0);
+
+            assertEquals(p1, policy.chooseVictim(frames));
+            policy.remove(p1);
+            frames.remove(p1);
+            assertNull(policy.chooseVictim(frames));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    /**
+     * Unknown pages and pages with room are candidates, full pages are not
+     */
+    @Test public void nextCandidate() throws Exception {
+        File f = File.createTempFile("fsm", ".fsm");
+        f.delete();
+        f.deleteOnExit();
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        assertEquals(0, fsm.nextCandidate(0, 4));
+        assertEquals(FreeSpaceMap.UNKNOWN, fsm.freeSlots(0));
+
+        fsm.update(0, 0);
+        fsm.update(1, 0);
+        fsm.update(2, 3);
+        fsm.update(3, 0);
+        assertEquals(2, fsm.nextCandidate(0, 4));
+        assertEquals(-1, fsm.nextCandidate(3, 4));
+        // pages past the map are unknown
+        assertEquals(4, fsm.nextCandidate(3, 5));
+
+        // a delete on a page below the search start is found again
+        fsm.update(2, 0);
+        assertEquals(-1, fsm.nextCandidate(0, 4));
+        fsm.update(1, 1);
+        assertEquals(1, fsm.nextCandidate(0, 4));
+    }
+
+    /**
+     * Updates stay in memory until the map is saved, and saved entries are
+     * loaded by a new map over the same side file
+     */
+    @Test public void saveAndLoad() throws Exception {
+        File f = File.createTempFile("fsm", ".fsm");
+        f.delete();
+        f.deleteOnExit();
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        fsm.update(3, 7);
+        fsm.update(5, 1000);
+        fsm.saveIfDue();
+        assertFalse(f.exists());
+        fsm.close();
+
+        FreeSpaceMap loaded = new FreeSpaceMap(f);
+        assertEquals(FreeSpaceMap.UNKNOWN, loaded.freeSlots(0));
+        assertEquals(7, loaded.freeSlots(3));
+        assertEquals(FreeSpaceMap.MAX_TRACKED, loaded.freeSlots(5));
+    }
+
+    /**
+     * Once the full pages are known, an insert only reads the page with room
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        FreeSpaceMap.sideFile(hf.getFile()).deleteOnExit();
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(11, hf.numPages());
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(2, 2));
+        bp.transactionComplete(tid);
+        assertEquals(1, bp.getMissCount());
+        assertEquals(11, hf.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("encoder", suffix);
+        f.deleteOnExit();
+        FreeSpaceMap.sideFile(f).deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Chunks cut in the middle of lines produce the same pages as one
+     * chunk, with every tuple in input order
+     */
+    @Test public void chunkedConvert() throws Exception {
+        File in = tempFile(".txt");
+        FileWriter w = new FileWriter(in);
+        int rows = 504 * 3 + 7;
+        for (int i = 0; i < rows; i++) {
+            // blank and CRLF lines are allowed, the last line has no newline
+            if (i % 100 == 0)
+                w.write("\n");
+            w.write(" " + i + ", " + (-i) + (i % 2 == 0 ? "\r\n" : "\n"));
+        }
+        w.write(rows + "," + (-rows));
+        w.close();
+        rows++;
+
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        File whole = tempFile(".dat");
+        File chunked = tempFile(".dat");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        HeapFileEncoder.convert(in, whole, BufferPool.getPageSize(), 2, types, ',', pool, 1 << 20);
+        HeapFileEncoder.convert(in, chunked, BufferPool.getPageSize(), 2, types, ',', pool, 37);
+        pool.shutdown();
+
+        byte[] data = TestUtil.readFileBytes(whole.getAbsolutePath());
+        assertArrayEquals(data, TestUtil.readFileBytes(chunked.getAbsolutePath()));
+        assertEquals(4 * BufferPool.getPageSize(), data.length);
+
+        HeapFile hf = Utility.openHeapFile(2, whole);
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new IntField(count), t.getField(0));
+            assertEquals(new IntField(-count), t.getField(1));
+            count++;
+        }
+        it.close();
+        assertEquals(rows, count);
+    }
+
+    /**
+     * String fields are trimmed and cut off at Type.STRING_LEN
+     */
+    @Test public void stringFields() throws Exception {
+        File in = tempFile(".txt");
+        FileWriter w = new FileWriter(in);
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < Type.STRING_LEN + 10; i++)
+            longString.append('x');
+        w.write("1| abc \n2|" + longString + "\n");
+        w.close();
+
+        File out = tempFile(".dat");
+        Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+        HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 2, types, '|');
+        HeapFile hf = new HeapFile(out, new TupleDesc(types));
+        Database.getCatalog().addTable(hf, "strings");
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        java.util.Iterator<Tuple> it = page.iterator();
+        assertEquals("abc", ((StringField) it.next().getField(1)).getValue());
+        assertEquals(Type.STRING_LEN, ((StringField) it.next().getField(1)).getValue().length());
+    }
+
+    /**
+     * Non-ASCII strings are encoded as the line-by-line path encodes them:
+     * decoded, cut off by chars and stored one byte per char
+     */
+    @Test public void nonAsciiStrings() throws Exception {
+        File in = tempFile(".txt");
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < Type.STRING_LEN; i++)
+            longString.append('\u00e9');
+        String[] lines = { "1| caf\u00e9 ", "2|na\u00efve \u65e5\u672c", "3|" + longString + "x" };
+        // UTF-8 whatever the default charset, so the file has multibyte chars
+        Writer w = new OutputStreamWriter(new FileOutputStream(in), "UTF-8");
+        for (String line : lines)
+            w.write(line + "\n");
+        w.close();
+
+        File out = tempFile(".dat");
+        Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+        TupleDesc td = new TupleDesc(types);
+        HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 2, types, '|');
+
+        HeapFile hf = new HeapFile(out, td);
+        Database.getCatalog().addTable(hf, "nonascii");
+        HeapPage expected = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        BufferedReader r = new BufferedReader(new FileReader(in));
+        String line;
+        while ((line = r.readLine()) != null)
+            expected.insertTuple(HeapFileEncoder.parseTuple(line, td, '|'));
+        r.close();
+        byte[] data = TestUtil.readFileBytes(out.getAbsolutePath());
+        assertArrayEquals(expected.getPageData(), java.util.Arrays.copyOf(data, BufferPool.getPageSize()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
@@ -77,6 +77,120 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * A sequential scan reads the next pages ahead in the background
+     */
+    @Test
+    public void iteratorReadsAhead() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        FreeSpaceMap.sideFile(big.getFile()).deleteOnExit();
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setReadAheadDepth(4);
+
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        // read the first two pages
+        for (int i = 0; i < 504 + 1; i++) {
+            it.next();
+            it.hasNext();
+        }
+        HeapPageId ahead = new HeapPageId(big.getId(), 5);
+        for (int i = 0; i < 100 && bp.getReadAheadCount() < 4; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(bp.bp.containsKey(ahead));
+        assertFalse(bp.bp.containsKey(new HeapPageId(big.getId(), 6)));
+        assertEquals(4, bp.getReadAheadCount());
+
+        int count = 504 + 1;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(504*10, count);
+        it.close();
+    }
+
+    /**
+     * A scan of a table much larger than the pool recycles a few frames and
+     * leaves the pages already in the pool alone
+     */
+    @Test
+    public void scanRingKeepsHotPages() throws Exception {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 504*4, null, null);
+        FreeSpaceMap.sideFile(hot.getFile()).deleteOnExit();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504*40, null, null);
+        FreeSpaceMap.sideFile(big.getFile()).deleteOnExit();
+        BufferPool bp = Database.resetBufferPool(20);
+        bp.setReadAheadDepth(0);
+
+        DbFileIterator it = hot.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+
+        it = big.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(bp.bp.containsKey(new HeapPageId(hot.getId(), i)));
+        }
+        // the ring has 20 / 4 frames
+        assertTrue(bp.bp.size() <= 4 + 5);
+
+        // scanning the hot table again only hits
+        long misses = bp.getMissCount();
+        it = hot.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        assertEquals(misses, bp.getMissCount());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() with memory-mapped reads
+     */
+    @Test
+    public void readMappedPage() throws Exception {
+        hf.setMemoryMapped(true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(1));
+
+        // writes show up in the mapping, and a grown file is mapped again
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(page);
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        hf.writePage(new HeapPage(next, HeapPage.createEmptyPageData()));
+        assertEquals(483, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        assertEquals(504, ((HeapPage) hf.readPage(next)).getNumEmptySlots());
+    }
+
+    /**
+     * An interrupt during I/O closes the shared channel; readPage reopens it
+     * and keeps the interrupt flag
+     */
+    @Test
+    public void readPageAfterInterrupt() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Thread.currentThread().interrupt();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertTrue(Thread.interrupted());
+        assertEquals(484, page.getNumEmptySlots());
+
+        hf.close();
+        page = (HeapPage) hf.readPage(pid);
+        assertTrue(page.isSlotUsed(1));
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -86,6 +86,145 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * New pages come out of a preallocated extent, numPages() counts only the
+     * pages in use, and a reopened file sees the same count
+     */
+    @Test public void preallocatedExtent() throws Exception {
+        empty.setExtentPages(8);
+        // page 0 is full after 504 inserts
+        for (int i = 0; i < 504 + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(9 * BufferPool.getPageSize(), empty.getFile().length());
+
+        // the new page lives in the buffer pool until it is flushed
+        HeapPageId pid = new HeapPageId(empty.getId(), 1);
+        assertEquals(504, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+        assertNotNull(Database.getBufferPool().bp.get(pid).isDirty());
+        Database.getBufferPool().flushPages(tid);
+        assertEquals(503, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.numPages());
+    }
+
+    /**
+     * The saved high-water mark is not trusted once something else wrote
+     * past it, such as a file of the same length replacing this one
+     */
+    @Test public void replacedFile() throws Exception {
+        empty.setExtentPages(8);
+        for (int i = 0; i < 504 + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().flushAllPages();
+        empty.close();
+        assertEquals(9 * BufferPool.getPageSize(), empty.getFile().length());
+
+        // nine full pages, written over the file but not its side file
+        java.util.ArrayList<java.util.ArrayList<Integer>> tuples =
+                new java.util.ArrayList<java.util.ArrayList<Integer>>();
+        for (int i = 0; i < 504 * 9; ++i) {
+            tuples.add(new java.util.ArrayList<Integer>(java.util.Arrays.asList(i, i)));
+        }
+        java.io.File replacement = java.io.File.createTempFile("replacement", ".dat");
+        replacement.deleteOnExit();
+        FreeSpaceMap.sideFile(replacement).deleteOnExit();
+        HeapFileEncoder.convert(tuples, replacement, BufferPool.getPageSize(), 2);
+        java.nio.file.Files.copy(replacement.toPath(), empty.getFile().toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(9, reopened.numPages());
+    }
+
+    /**
+     * A bulk load packs the tuples into new full pages that read back in
+     * order, and an abort empties them again
+     */
+    @Test public void bulkLoad() throws Exception {
+        java.util.List<Tuple> tuples = new java.util.ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 3 + 10; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        // the load starts after the file's empty first page
+        assertEquals(1, empty.numPages());
+        assertEquals(tuples.size(), empty.bulkLoad(tid, tuples.iterator()));
+        assertEquals(5, empty.numPages());
+        HeapPage last = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 4));
+        assertEquals(504 - 10, last.getNumEmptySlots());
+        assertEquals(FreeSpaceMap.MAX_TRACKED, empty.getFreeSpaceMap().freeSlots(4));
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(count), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size(), count);
+
+        // an insert after the load goes to the last page, which has room
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(-1, 2));
+        assertEquals(5, empty.numPages());
+
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(1, empty.numPages());
+        HeapPage undone = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 1));
+        assertEquals(504, undone.getNumEmptySlots());
+        tid = new TransactionId();
+    }
+
+    /**
+     * A PAX file stores each column of a page together, and a projected
+     * scan returns just the fields asked for
+     */
+    @Test public void paxLayout() throws Exception {
+        java.io.File f = java.io.File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.sideFile(f).deleteOnExit();
+        HeapFile pax = new HeapFile(f, Utility.getTupleDesc(3), HeapFile.Layout.PAX);
+        Database.getCatalog().addTable(pax, SystemTestUtil.getUUID());
+        for (int i = 0; i < 10; ++i) {
+            Database.getBufferPool().insertTuple(tid, pax.getId(),
+                    Utility.getHeapTuple(new int[] { i, i * 10, i * 100 }));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        tid = new TransactionId();
+
+        // the second column of slot 3 is in the second mini-page
+        byte[] data = pax.readPage(new HeapPageId(pax.getId(), 0)).getPageData();
+        int numSlots = (BufferPool.getPageSize() * 8) / (12 * 8 + 1);
+        int off = (numSlots + 7) / 8 + numSlots * 4 + 3 * 4;
+        assertEquals(30, new java.io.DataInputStream(
+                new java.io.ByteArrayInputStream(data, off, 4)).readInt());
+
+        // bulk loaded pages use the same layout
+        java.util.List<Tuple> tuples = new java.util.ArrayList<Tuple>();
+        for (int i = 10; i < numSlots * 2; ++i) {
+            tuples.add(Utility.getHeapTuple(new int[] { i, i * 10, i * 100 }));
+        }
+        pax.bulkLoad(tid, tuples.iterator());
+
+        SeqScan scan = new SeqScan(tid, pax.getId(), "p", new int[] { 2, 0 });
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("p." + pax.getTupleDesc().getFieldName(2), scan.getTupleDesc().getFieldName(0));
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int i = ((IntField) t.getField(1)).getValue();
+            assertEquals(new IntField(i * 100), t.getField(0));
+            count++;
+        }
+        scan.close();
+        assertEquals(numSlots * 2, count);
+    }
+
     /**
      * JUnit suite target
      */
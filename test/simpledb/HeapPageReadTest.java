@@ -120,6 +120,27 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Single fields and tuples are decoded on demand, and a decoded tuple is
+     * kept for the next request
+     */
+    @Test public void decodeOnDemand() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < 20; ++i)
+            assertEquals(new IntField(EXAMPLE_VALUES[i][1]), page.getField(i, 1));
+        assertEquals(null, page.getField(20, 0));
+        assertEquals(null, page.getTuple(20));
+
+        Tuple t = page.getTuple(3);
+        assertEquals(new RecordId(pid, 3), t.getRecordId());
+        assertTrue(t == page.getTuple(3));
+        Iterator<Tuple> it = page.iterator();
+        for (int i = 0; i < 3; ++i)
+            it.next();
+        assertTrue(t == it.next());
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -126,6 +126,113 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Inserts fill the first free slot, across bitmap words, and the
+     * iterator skips empty slots
+     */
+    @Test public void bitmapSlots() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 504; ++i)
+            page.insertTuple(Utility.getHeapTuple(i, 2));
+        assertEquals(0, page.getNumEmptySlots());
+
+        // free every third slot
+        Iterator<Tuple> it = page.iterator();
+        int freed = 0;
+        for (int i = 0; it.hasNext(); ++i) {
+            Tuple t = it.next();
+            if (i % 3 == 0) {
+                page.deleteTuple(t);
+                freed++;
+            }
+        }
+        assertEquals(freed, page.getNumEmptySlots());
+        assertTrue(!page.isSlotUsed(63) && page.isSlotUsed(64) && !page.isSlotUsed(66));
+
+        int seen = 0;
+        for (it = page.iterator(); it.hasNext(); ++seen)
+            assertTrue(it.next().getRecordId().getTupleNumber() % 3 != 0);
+        assertEquals(504 - freed, seen);
+
+        page.insertTuple(Utility.getHeapTuple(-1, 2));
+        assertTrue(page.isSlotUsed(0));
+        page.insertTuple(Utility.getHeapTuple(-2, 2));
+        assertTrue(page.isSlotUsed(3));
+        assertEquals(freed - 2, page.getNumEmptySlots());
+    }
+
+    /**
+     * Inserted tuples are encoded when the page bytes are next needed, and
+     * a slot freed before then is written as zeros
+     */
+    @Test public void encodeChangedSlots() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple kept = Utility.getHeapTuple(7, 2);
+        Tuple dropped = Utility.getHeapTuple(8, 2);
+        page.insertTuple(kept);
+        page.insertTuple(dropped);
+        page.deleteTuple(dropped);
+
+        byte[] data = page.getPageData();
+        java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(data.length);
+        page.writeTo(buf);
+        assertTrue(java.util.Arrays.equals(data, buf.array()));
+
+        HeapPage copy = new HeapPage(pid, data);
+        assertEquals(new IntField(7), copy.getTuple(20).getField(0));
+        assertEquals(null, copy.getTuple(21));
+        // 63 header bytes, then 8 bytes per slot
+        for (int i = 63 + 21 * 8; i < 63 + 22 * 8; i++)
+            assertEquals(0, data[i]);
+    }
+
+    /**
+     * The before image is captured by the first change after
+     * setBeforeImage, and not kept for unchanged pages
+     */
+    @Test public void beforeImageOnFirstChange() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertEquals(null, page.oldData);
+        assertEquals(484, page.getBeforeImage().getNumEmptySlots());
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        page.insertTuple(Utility.getHeapTuple(2, 2));
+        assertEquals(484, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(482, page.getNumEmptySlots());
+
+        page.setBeforeImage();
+        assertEquals(null, page.oldData);
+        assertEquals(482, page.getBeforeImage().getNumEmptySlots());
+        page.deleteTuple(page.getTuple(0));
+        assertEquals(482, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
+    }
+
+    /**
+     * An iterator keeps seeing the page as it was when it was created
+     */
+    @Test public void iteratorSnapshot() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = page.getTuple(0);
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(-1, 2));
+        page.insertTuple(Utility.getHeapTuple(-2, 2));
+
+        int row = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(HeapPageReadTest.EXAMPLE_VALUES[row][0]), it.next().getField(0));
+            row++;
+        }
+        assertEquals(20, row);
+
+        // the changes are in the page bytes
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(504 - 21, copy.getNumEmptySlots());
+        // the freed slot is the first free one, so it is reused
+        assertEquals(new IntField(-1), copy.getTuple(0).getField(0));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,246 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager lm;
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+
+    /**
+     * Helper thread that requests one lock and records how the request ended.
+     */
+    private class Requester extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final boolean exclusive;
+        volatile boolean acquired = false;
+        volatile Exception error = null;
+
+        Requester(TransactionId tid, PageId pid, boolean exclusive) {
+            this.tid = tid;
+            this.pid = pid;
+            this.exclusive = exclusive;
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(pid, tid, exclusive);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void createLockManager() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    /**
+     * A waiter is granted the lock as soon as the holder releases it
+     */
+    @Test public void releaseWakesWaiter() throws Exception {
+        lm.acquireLock(p0, tid1, true);
+        Requester r = new Requester(tid2, p0, false);
+        r.start();
+        Thread.sleep(50);
+        assertFalse(r.acquired);
+
+        lm.releaseAllLocks(tid1);
+        r.join(1000);
+        assertTrue(r.acquired);
+        assertTrue(lm.holdsLock(tid2, p0));
+        assertFalse(lm.holdsLock(tid1, p0));
+    }
+
+    /**
+     * A write-write deadlock is broken right away by aborting one side
+     */
+    @Test public void deadlockVictim() throws Exception {
+        lm.acquireLock(p0, tid1, true);
+        lm.acquireLock(p1, tid2, true);
+
+        Requester r1 = new Requester(tid1, p1, true);
+        r1.start();
+        Thread.sleep(50);
+        long start = System.currentTimeMillis();
+        Requester r2 = new Requester(tid2, p0, true);
+        r2.start();
+
+        // the younger transaction tid2 is the victim
+        r2.join(1000);
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertTrue(r2.error instanceof DeadlockException);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAllLocks(tid2);
+        r1.join(1000);
+        assertTrue(r1.acquired);
+    }
+
+    /**
+     * NO_WAIT aborts on the first conflict
+     */
+    @Test public void noWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.NO_WAIT);
+        lm.acquireLock(p0, tid1, false);
+        lm.acquireLock(p0, tid2, false);
+
+        Requester r = new Requester(tid2, p0, true);
+        r.start();
+        r.join(1000);
+        assertTrue(r.error instanceof TransactionAbortedException);
+        assertEquals(1, lm.getPreventionAbortCount());
+        // the shared lock survives the failed upgrade
+        assertTrue(lm.holdsLock(tid2, p0));
+    }
+
+    /**
+     * WAIT_DIE lets the older transaction wait and aborts the younger one
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        lm.acquireLock(p0, tid1, true);
+        lm.acquireLock(p1, tid2, true);
+
+        Requester younger = new Requester(tid2, p0, true);
+        younger.start();
+        younger.join(1000);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+
+        Requester older = new Requester(tid1, p1, true);
+        older.start();
+        Thread.sleep(50);
+        assertFalse(older.acquired);
+        assertTrue(older.error == null);
+
+        lm.releaseAllLocks(tid2);
+        older.join(1000);
+        assertTrue(older.acquired);
+    }
+
+    /**
+     * WOUND_WAIT aborts a younger holder that is itself waiting
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        lm.acquireLock(p0, tid1, true);
+        lm.acquireLock(p1, tid2, true);
+
+        // the younger transaction waits for the older one
+        Requester younger = new Requester(tid2, p0, true);
+        younger.start();
+        Thread.sleep(50);
+        assertFalse(younger.acquired);
+        assertTrue(younger.error == null);
+
+        // the older one wounds it instead of waiting for it
+        Requester older = new Requester(tid1, p1, true);
+        older.start();
+        younger.join(1000);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+
+        lm.releaseAllLocks(tid2);
+        older.join(1000);
+        assertTrue(older.acquired);
+        assertEquals(0, lm.getDeadlockCount());
+    }
+
+    /**
+     * Readers and writers of different pages share the table through
+     * intention locks, but a table S lock keeps writers out
+     */
+    @Test public void intentionLocks() throws Exception {
+        lm.acquireLock(p0, tid1, false);
+        lm.acquireLock(p1, tid2, true);
+        assertEquals(LockMode.IS, lm.tableLockMode(tid1, 1));
+        assertEquals(LockMode.IX, lm.tableLockMode(tid2, 1));
+
+        TransactionId tid3 = new TransactionId();
+        lm.acquireTableLock(2, tid3, LockMode.S);
+        assertTrue(lm.holdsLock(tid3, new HeapPageId(2, 7)));
+        Requester r = new Requester(tid1, new HeapPageId(2, 0), true);
+        r.start();
+        Thread.sleep(50);
+        assertFalse(r.acquired);
+
+        lm.releaseAllLocks(tid3);
+        r.join(1000);
+        assertTrue(r.acquired);
+    }
+
+    /**
+     * Crossing the threshold replaces the page locks by one table lock
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(3);
+        for (int i = 0; i < 4; i++) {
+            lm.acquireLock(new HeapPageId(1, i), tid1, false);
+        }
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(LockMode.S, lm.tableLockMode(tid1, 1));
+        assertEquals(1, lm.transactionLocks.get(tid1).size());
+        // later pages are covered without taking page locks
+        lm.acquireLock(new HeapPageId(1, 10), tid1, false);
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 11)));
+        assertEquals(1, lm.transactionLocks.get(tid1).size());
+
+        // escalation never waits: another reader's IS lock is compatible,
+        // a writer's IX lock keeps tid2 on page locks
+        lm.acquireLock(new HeapPageId(2, 0), tid1, true);
+        lm.setEscalationThreshold(1);
+        lm.acquireLock(new HeapPageId(2, 1), tid2, false);
+        lm.acquireLock(new HeapPageId(2, 2), tid2, false);
+        assertEquals(LockMode.IS, lm.tableLockMode(tid2, 2));
+        assertTrue(lm.holdsLock(tid2, new HeapPageId(2, 1)));
+        assertFalse(lm.holdsLock(tid2, new HeapPageId(2, 3)));
+    }
+
+    /**
+     * Writers of different rows share a page, writers of one row don't, and
+     * a page reader waits for the row writers
+     */
+    @Test public void rowLocks() throws Exception {
+        lm.acquireRowLock(new RecordId(p0, 0), tid1, true);
+        lm.acquireRowLock(new RecordId(p0, 1), tid2, true);
+        assertTrue(lm.holdsRowLock(tid1, new RecordId(p0, 0)));
+        assertFalse(lm.holdsRowLock(tid1, new RecordId(p0, 1)));
+        assertFalse(lm.tryRowLock(new RecordId(p0, 1), tid1));
+
+        TransactionId tid3 = new TransactionId();
+        Requester r = new Requester(tid3, p0, false);
+        r.start();
+        Thread.sleep(50);
+        assertFalse(r.acquired);
+
+        lm.releaseAllLocks(tid1);
+        lm.releaseAllLocks(tid2);
+        r.join(1000);
+        assertTrue(r.acquired);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
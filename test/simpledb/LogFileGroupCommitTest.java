@@ -0,0 +1,86 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileGroupCommitTest extends SimpleDbTestBase {
+
+    private static final int COMMITTERS = 8;
+
+    private LogFile log;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void createLog() throws Exception {
+        File f = File.createTempFile("grouplog", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    /**
+     * Concurrent commits share forces instead of forcing once each
+     */
+    @Test public void concurrentCommitsShareForce() throws Exception {
+        log.setGroupCommit(2, TimeUnit.SECONDS, COMMITTERS);
+
+        final TransactionId[] tids = new TransactionId[COMMITTERS];
+        for (int i = 0; i < COMMITTERS; i++) {
+            tids[i] = new TransactionId();
+            log.logXactionBegin(tids[i]);
+        }
+
+        final Exception[] errors = new Exception[COMMITTERS];
+        Thread[] threads = new Thread[COMMITTERS];
+        for (int i = 0; i < COMMITTERS; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        log.logCommit(tids[n]);
+                    } catch (Exception e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        for (Exception e : errors) {
+            assertNull(e);
+        }
+        assertTrue(log.getGroupForceCount() < COMMITTERS);
+        assertEquals(2 * COMMITTERS, log.getTotalRecords());
+    }
+
+    /**
+     * A lone commit does not wait for the batch to fill when there is no delay
+     */
+    @Test public void singleCommitForces() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        assertEquals(1, log.getGroupForceCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileGroupCommitTest.class);
+    }
+}
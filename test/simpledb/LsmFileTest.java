@@ -0,0 +1,341 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LsmFileTest extends SimpleDbTestBase {
+
+    private TupleDesc td;
+    private File dir;
+    private LsmFile lf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void createFile() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "id", "name" });
+        dir = File.createTempFile("lsmtable", "");
+        dir.delete();
+        lf = new LsmFile(dir, td, 0);
+        lf.setMemtableLimit(100);
+        Database.getCatalog().addTable(lf, SystemTestUtil.getUUID());
+    }
+
+    @After public void deleteFile() throws Exception {
+        lf.awaitBackground();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private Tuple row(int id) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField("name" + id, Type.STRING_LEN));
+        return t;
+    }
+
+    private List<Tuple> scan(LsmFile f, TransactionId tid) throws Exception {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            rows.add(it.next());
+        }
+        it.close();
+        return rows;
+    }
+
+    /**
+     * Committed inserts come back in key order across the memtable, flushed
+     * runs and compactions
+     */
+    @Test public void insertFlushCompact() throws Exception {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(i);
+        }
+        Collections.shuffle(ids, new java.util.Random(1));
+        for (int from = 0; from < ids.size(); from += 50) {
+            TransactionId tid = new TransactionId();
+            for (int id : ids.subList(from, from + 50)) {
+                Database.getBufferPool().insertTuple(tid, lf.getId(), row(id));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        lf.awaitBackground();
+        assertTrue(lf.numRuns() < LsmFile.COMPACT_RUNS);
+
+        TransactionId tid = new TransactionId();
+        List<Tuple> rows = scan(lf, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1000, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(new IntField(i), rows.get(i).getField(0));
+            assertEquals(new StringField("name" + i, Type.STRING_LEN), rows.get(i).getField(1));
+        }
+    }
+
+    /**
+     * Deleted rows are hidden whether the row is in a run or the memtable,
+     * and stay hidden once flushed and compacted
+     */
+    @Test public void delete() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 150; i++) {
+            Database.getBufferPool().insertTuple(tid, lf.getId(), row(i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        lf.awaitBackground();
+
+        tid = new TransactionId();
+        for (Tuple t : scan(lf, tid)) {
+            if (((IntField) t.getField(0)).getValue() % 3 == 0) {
+                Database.getBufferPool().deleteTuple(tid, t);
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(100, scan(lf, tid).size());
+        Database.getBufferPool().transactionComplete(tid);
+
+        lf.flush();
+        lf.compact();
+        assertEquals(1, lf.numRuns());
+        tid = new TransactionId();
+        List<Tuple> rows = scan(lf, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(100, rows.size());
+        for (Tuple t : rows) {
+            assertTrue(((IntField) t.getField(0)).getValue() % 3 != 0);
+        }
+    }
+
+    /**
+     * A transaction sees its own writes, and they are dropped if it aborts
+     */
+    @Test public void abort() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().insertTuple(tid, lf.getId(), row(i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        for (int i = 10; i < 20; i++) {
+            Database.getBufferPool().insertTuple(tid, lf.getId(), row(i));
+        }
+        assertEquals(20, scan(lf, tid).size());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        assertEquals(10, scan(lf, tid).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Transactions inserting into one table don't wait for each other, so
+     * their commits share log forces
+     */
+    @Test public void concurrentWritersShareForce() throws Exception {
+        final int writers = 4;
+        Database.getLogFile().setGroupCommit(2, TimeUnit.SECONDS, writers);
+        long forces = Database.getLogFile().getGroupForceCount();
+        final Exception[] errors = new Exception[writers];
+        Thread[] threads = new Thread[writers];
+        for (int i = 0; i < writers; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        for (int j = 0; j < 10; j++) {
+                            Database.getBufferPool().insertTuple(tid, lf.getId(), row(n * 10 + j));
+                        }
+                        Database.getBufferPool().transactionComplete(tid);
+                    } catch (Exception e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Database.getLogFile().setGroupCommit(0, TimeUnit.SECONDS, LogFile.DEFAULT_GROUP_COMMIT_MAX_BATCH);
+        for (Exception e : errors) {
+            if (e != null) {
+                throw e;
+            }
+        }
+        assertTrue(Database.getLogFile().getGroupForceCount() - forces < writers);
+
+        TransactionId tid = new TransactionId();
+        assertEquals(writers * 10, scan(lf, tid).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A checkpoint flushes the memtable, and a new LsmFile over the same
+     * directory reads the runs
+     */
+    @Test public void reopen() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 250; i++) {
+            Database.getBufferPool().insertTuple(tid, lf.getId(), row(i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getLogFile().logCheckpoint();
+        lf.awaitBackground();
+
+        LsmFile reopened = new LsmFile(dir, td, 0);
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+        List<Tuple> rows = scan(reopened, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(250, rows.size());
+        assertEquals(new IntField(249), rows.get(249).getField(0));
+    }
+
+    /**
+     * Committed writes that only the log holds, because the memtable was
+     * never flushed, are redone by recovery after a crash
+     */
+    @Test public void recoverAfterCrash() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().insertTuple(tid, lf.getId(), row(i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        for (Tuple t : scan(lf, tid)) {
+            if (((IntField) t.getField(0)).getValue() == 3) {
+                Database.getBufferPool().deleteTuple(tid, t);
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(0, lf.numRuns());
+
+        // the crash loses the memtable: a new LsmFile over the directory
+        // takes the table's place
+        LsmFile restarted = new LsmFile(dir, td, 0);
+        Database.getCatalog().addTable(restarted, SystemTestUtil.getUUID());
+        Database.getLogFile().recover();
+
+        tid = new TransactionId();
+        List<Tuple> rows = scan(restarted, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(9, rows.size());
+        for (Tuple t : rows) {
+            assertTrue(((IntField) t.getField(0)).getValue() != 3);
+        }
+
+        // the recovered log takes new commits after its records
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, restarted.getId(), row(10));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        assertEquals(10, scan(restarted, tid).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A manifest that can't be read fails writes and numRuns() with an
+     * IOException and scans with a DbException, every time it is tried
+     */
+    @Test public void unreadableManifest() throws Exception {
+        dir.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(dir, "manifest"));
+        // cut off in the middle of the header
+        out.write(new byte[] { 0, 0 });
+        out.close();
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2; i++) {
+            try {
+                Database.getBufferPool().insertTuple(tid, lf.getId(), row(i));
+                fail("expected an IOException");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        try {
+            lf.numRuns();
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        DbFileIterator it = lf.iterator(tid);
+        try {
+            it.open();
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+    }
+
+    private static Map.Entry<LsmFile.Key, LsmFile.Entry> entry(int key, long seq, Tuple t, boolean tombstone) {
+        return new AbstractMap.SimpleImmutableEntry<LsmFile.Key, LsmFile.Entry>(
+                new LsmFile.Key(new IntField(key), seq), new LsmFile.Entry(t, tombstone));
+    }
+
+    /**
+     * The merge returns entries in order, and the newest source's copy of
+     * an entry, which hides the row if it is a tombstone
+     */
+    @Test public void mergeOrder() throws Exception {
+        Tuple a = row(1);
+        Tuple b = row(1);
+        List<Map.Entry<LsmFile.Key, LsmFile.Entry>> newer = new ArrayList<Map.Entry<LsmFile.Key, LsmFile.Entry>>();
+        newer.add(entry(1, 1, b, false));
+        newer.add(entry(2, 2, row(2), true));
+        List<Map.Entry<LsmFile.Key, LsmFile.Entry>> older = new ArrayList<Map.Entry<LsmFile.Key, LsmFile.Entry>>();
+        older.add(entry(1, 1, a, false));
+        older.add(entry(2, 2, row(2), false));
+        older.add(entry(3, 3, row(3), false));
+        List<Iterator<Map.Entry<LsmFile.Key, LsmFile.Entry>>> sources =
+                new ArrayList<Iterator<Map.Entry<LsmFile.Key, LsmFile.Entry>>>();
+        sources.add(newer.iterator());
+        sources.add(older.iterator());
+        LsmFile.MergeIterator it = new LsmFile.MergeIterator(sources, false);
+        assertTrue(it.next().getValue().tuple == b);
+        assertEquals(new IntField(3), it.next().getValue().tuple.getField(0));
+        assertTrue(!it.hasNext());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LsmFileTest.class);
+    }
+}
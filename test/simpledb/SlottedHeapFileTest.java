@@ -0,0 +1,235 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+
+    private TupleDesc td;
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * Short strings take their own length, so a page holds many more tuples
+     * than a HeapPage's fixed slots, and the bytes read back the same
+     */
+    @Test public void variableLength() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, new byte[BufferPool.getPageSize()]);
+        int n = 0;
+        while (page.getFreeSpace() >= page.spaceNeeded(tuple(n, "s" + n))) {
+            page.insertTuple(tuple(n, "s" + n));
+            n++;
+        }
+        int heapSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        assertTrue(n > 8 * heapSlots);
+
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < n; i++) {
+            Tuple t = it.next();
+            assertEquals(new IntField(i), t.getField(0));
+            assertEquals(new StringField("s" + i, Type.STRING_LEN), t.getField(1));
+            assertEquals(i, t.getRecordId().getTupleNumber());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Deleted records leave holes that an insert reclaims by compacting the
+     * page, without moving the other records to new slots
+     */
+    @Test public void compaction() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, new byte[BufferPool.getPageSize()]);
+        String s = "0123456789012345678901234567890123456789";
+        int n = 0;
+        while (page.getFreeSpace() >= page.spaceNeeded(tuple(n, s))) {
+            page.insertTuple(tuple(n++, s));
+        }
+        // free every other record; none of the holes is big enough alone
+        for (int i = 0; i < n; i += 2) {
+            page.deleteTuple(page.getTuple(i));
+        }
+        String big = s + s + s;
+        Tuple t = tuple(-1, big);
+        page.insertTuple(t);
+        assertEquals(0, t.getRecordId().getTupleNumber());
+        assertEquals(new StringField(big, Type.STRING_LEN), page.getTuple(0).getField(1));
+        for (int i = 1; i < n; i += 2) {
+            assertEquals(new IntField(i), page.getTuple(i).getField(0));
+        }
+        assertFalse(page.isSlotUsed(2));
+    }
+
+    /**
+     * Inserts, deletes and scans through the BufferPool, and a catalog
+     * entry that picks the slotted format
+     */
+    @Test public void insertDeleteScan() throws Exception {
+        File dir = File.createTempFile("slotted", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("words (id int, word string) slotted\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getPath());
+        int tableId = Database.getCatalog().getTableId("words");
+        SlottedHeapFile file = (SlottedHeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        file.getFile().deleteOnExit();
+        file.getFreeSpaceMap().getFile().deleteOnExit();
+
+        TransactionId tid = new TransactionId();
+        TupleDesc words = file.getTupleDesc();
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = new Tuple(words);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("word" + i, Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, tableId, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        // a HeapFile needs 34 pages for these
+        assertTrue(file.numPages() <= 5);
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, tableId, "w");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            if (((IntField) t.getField(0)).getValue() % 2 == 0) {
+                Database.getBufferPool().deleteTuple(tid, t);
+            }
+            count++;
+        }
+        scan.close();
+        assertEquals(1000, count);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        scan = new SeqScan(tid, tableId, "w");
+        scan.open();
+        count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(1, ((IntField) t.getField(0)).getValue() % 2);
+            assertEquals("word" + t.getField(0), ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(500, count);
+    }
+
+    /**
+     * An insert leaves the free space map in step with the page, as a
+     * delete does
+     */
+    @Test public void insertUpdatesFreeSpace() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.sideFile(f).deleteOnExit();
+        SlottedHeapFile file = new SlottedHeapFile(f, td);
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        HeapPageId first = new HeapPageId(file.getId(), 0);
+        for (int i = 0; i < 2; i++) {
+            // the first insert adds a page, the second finds room on it
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i, "row" + i));
+            SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, first, Permissions.READ_ONLY);
+            assertEquals(page.getFreeSpace() / SlottedHeapFile.freeSpaceUnit(),
+                    file.getFreeSpaceMap().freeSlots(0));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * New pages come out of a preallocated extent, numPages() counts only
+     * the pages in use, and a reopened file sees the same count
+     */
+    @Test public void preallocatedExtent() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        FreeSpaceMap.sideFile(f).deleteOnExit();
+        SlottedHeapFile file = new SlottedHeapFile(f, td);
+        file.setExtentPages(8);
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int rows = 0;
+        while (file.numPages() < 2) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(rows, "row" + rows));
+            rows++;
+        }
+        assertEquals(8 * BufferPool.getPageSize(), f.length());
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        file.close();
+        assertEquals(8 * BufferPool.getPageSize(), f.length());
+
+        SlottedHeapFile reopened = new SlottedHeapFile(f, td);
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(2, reopened.numPages());
+        tid = new TransactionId();
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(rows, count);
+
+        // a preallocated page reads as empty, a page past the file does not
+        SlottedHeapPage empty = (SlottedHeapPage) reopened.readPage(new HeapPageId(reopened.getId(), 7));
+        assertFalse(empty.iterator().hasNext());
+        try {
+            reopened.readPage(new HeapPageId(reopened.getId(), 8));
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+    }
+}